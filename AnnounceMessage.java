@@ -0,0 +1,41 @@
+import java.util.List;
+import java.util.Map;
+
+// Mensagem sem resposta em que um nó anuncia os ficheiros que partilha (pelo checksum, com o tamanho dos blocos)
+// Um anúncio completo substitui tudo o que o nó anunciou antes; os outros só trazem as alterações
+public class AnnounceMessage extends Message {
+    private NodeConnection node;
+    private boolean full;
+    private Map<String, Integer> added; // Checksum -> tamanho dos blocos
+    private List<String> removed; // Checksums que deixaram de ser partilhados
+
+    public AnnounceMessage(NodeConnection node, boolean full, Map<String, Integer> added, List<String> removed) {
+        super("ANNOUNCE:" + node + ":" + added.size() + ":" + removed.size(), "ANNOUNCE");
+        this.node = node;
+        this.full = full;
+        this.added = added;
+        this.removed = removed;
+    }
+
+    public NodeConnection getNode() {
+        return node;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    public Map<String, Integer> getAdded() {
+        return added;
+    }
+
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    @Override
+    public String toString() {
+        return "ANNOUNCE:" + node + ":" + (full ? "completo" : "+" + added.size() + "/-" + removed.size());
+    }
+
+}
@@ -4,13 +4,11 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
 
 public class App extends JFrame {
     private SharedFilesManager sharedFilesManager;
@@ -19,20 +17,22 @@ public class App extends JFrame {
 
     private JTextField searchField;
     private JButton searchButton;
-    private DefaultListModel<String> resultArea;
-    private JList<String> searchResultsList;
+    private DefaultListModel<ResultRow> resultArea;
+    private JList<ResultRow> searchResultsList;
     private JButton downloadButton;
     private JButton connectButton;
     private JTextArea appInfo;
+    private Map<String, ResultRow> resultRows = new HashMap<>(); // Linha de cada ficheiro (nome, tamanho e hash)
+    private Map<String, Set<NodeConnection>> holdersByChecksum = new HashMap<>(); // Nós que têm cada hash
 
-    // Construtor atualizado para receber a pasta compartilhada e a porta
-    public App(String sharedFolderPath, int port) throws UnknownHostException {
+    // Construtor atualizado para receber a pasta compartilhada, a porta e o tamanho dos blocos
+    public App(String sharedFolderPath, int port, int blockSize) throws UnknownHostException {
         // Obter o IP local do computador
         String ipAddress = InetAddress.getLocalHost().getHostAddress();
 
         // Configurar as classes principais com o IP local e a porta
         sharedFilesManager = new SharedFilesManager(sharedFolderPath);
-        downloadManager = new DownloadTaskManager(sharedFilesManager, ipAddress, port);
+        downloadManager = new DownloadTaskManager(sharedFilesManager, ipAddress, port, blockSize);
         connectionManager = new ConnectionManager(downloadManager);
         connectionManager.startServer();
 
@@ -106,35 +106,6 @@ public class App extends JFrame {
         }
     }
 
-    private List<String> processResults(List<String> fileList) {
-        // Map para contar as ocorrências de cada hash
-        Map<String, Integer> hashCounts = new HashMap<>();
-
-        // Contar ocorrências de cada hash
-        for (String file : fileList) {
-            String[] parts = file.split(":");
-            String hash = parts[2];
-            hashCounts.put(hash, hashCounts.getOrDefault(hash, 0) + 1);
-        }
-
-        // Adicionar o número de ocorrências e remover duplicados
-        Set<String> resultSet = new LinkedHashSet<>();
-        for (String file : fileList) {
-            String[] parts = file.split(":");
-            String name = parts[0];
-            String size = parts[1];
-            String hash = parts[2];
-            int count = hashCounts.get(hash);
-
-            // Construir a nova string com a contagem
-            String updatedFile = String.format("%s:%s:%s:%d", name, size, hash, count);
-            resultSet.add(updatedFile); // LinkedHashSet mantém a ordem e remove duplicados
-        }
-
-        // Retornar como lista
-        return new ArrayList<>(resultSet);
-    }
-
     private void searchResults() {
         String keyword = searchField.getText();
 
@@ -143,41 +114,62 @@ public class App extends JFrame {
             return;
         }
 
-        // Adicionar resultados locais à interface gráfica
         resultArea.clear();
+        resultRows.clear();
+        holdersByChecksum.clear();
+        searchButton.setEnabled(false);
+        searchButton.setText("A pesquisar...");
 
-        CountDownLatch latch = new CountDownLatch(downloadManager.getActiveConnections().size());
-        // Buscar arquivos em nós conectados
-        List<String> distributedResults = downloadManager.searchFilesInConnectedNodes(keyword, latch);
-        System.out.println("Resultados distribuídos: " + distributedResults);
+        // A pesquisa corre nas threads de rede; os resultados aparecem na lista à medida que cada nó responde e a
+        // pesquisa termina quando todos responderem ou o prazo acabar
+        downloadManager.searchFiles(keyword, results -> SwingUtilities.invokeLater(() -> addResults(results)))
+                .whenComplete((results, error) -> SwingUtilities.invokeLater(() -> {
+                    searchButton.setEnabled(true);
+                    searchButton.setText("Pesquisar");
+                    if (error != null) {
+                        System.out.println("Erro na pesquisa: " + error.getMessage());
+                    } else if (results.isEmpty()) {
+                        JOptionPane.showMessageDialog(this, "Nenhum ficheiro encontrado.", "Pesquisa",
+                                JOptionPane.INFORMATION_MESSAGE);
+                    }
+                }));
+    }
 
-        // Aguardar até que todas as conexões retornem resultados
-        try {
-            latch.await();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    // Método para juntar resultados novos à lista (na thread da interface gráfica)
+    // Cada ficheiro (nome, tamanho e hash) aparece uma vez, com o número de nós que têm ficheiros com o mesmo hash
+    private void addResults(List<SearchResult> results) {
+        Set<String> changedChecksums = new HashSet<>();
+        for (SearchResult result : results) {
+            Set<NodeConnection> holders = holdersByChecksum.computeIfAbsent(result.getChecksum(),
+                    checksum -> new HashSet<>());
+            if (holders.add(result.getHolder())) {
+                changedChecksums.add(result.getChecksum());
+            }
+            String key = result.getFileName() + "\0" + result.getFileSize() + "\0" + result.getChecksum();
+            if (!resultRows.containsKey(key)) {
+                ResultRow row = new ResultRow(result.getFileName(), result.getFileSize(), result.getChecksum(),
+                        holders);
+                resultRows.put(key, row);
+                resultArea.addElement(row);
+            }
         }
 
-        // Processar os resultados
-        List<String> uniqueResults = processResults(distributedResults);
-
-        // Adicionar resultados à interface gráfica
-        for (String result : uniqueResults) {
-            String name = result.split(":")[0];
-            String size = result.split(":")[1];
-            int count = Integer.parseInt(result.split(":")[3]);
-            result = name + " | Tamanho: " + convertBytes(Long.parseLong(size)) + " | Nós: " + count;
-            resultArea.addElement(result);
+        // Redesenhar as linhas cujo número de nós mudou
+        for (int i = 0; i < resultArea.size(); i++) {
+            ResultRow row = resultArea.get(i);
+            if (changedChecksums.contains(row.getChecksum())) {
+                resultArea.set(i, row);
+            }
         }
     }
 
     private void downloadSelectedFile() {
-        String selectedFile = searchResultsList.getSelectedValue();
+        ResultRow selectedFile = searchResultsList.getSelectedValue();
         Map<String, Integer> downloadResults;
         if (selectedFile != null) {
-            String fileName = selectedFile.split("\\|")[0].trim();
+            String fileName = selectedFile.getFileName();
             try {
-                downloadResults = downloadManager.requestDownloadToNodes(fileName);
+                downloadResults = downloadManager.requestDownloadToNodes(fileName, selectedFile.getChecksum());
                 if (downloadResults.isEmpty()) {
                     JOptionPane.showMessageDialog(this, "Ficheiro '" + fileName + "' não encontrado!", "Erro",
                             JOptionPane.ERROR_MESSAGE);
@@ -186,8 +178,6 @@ public class App extends JFrame {
             } catch (Exception e) {
                 JOptionPane.showMessageDialog(this, "Erro ao descarregar o ficheiro '" + fileName + "'", "Erro",
                         JOptionPane.ERROR_MESSAGE);
-                sharedFilesManager.loadSharedFiles();
-                downloadManager.createBlockRequests();
                 return;
             }
             String message = "Ficheiro '" + fileName + "' descarregado com sucesso!\n\n";
@@ -197,8 +187,6 @@ public class App extends JFrame {
             }
             JOptionPane.showMessageDialog(this, message, "Sucesso",
                     JOptionPane.INFORMATION_MESSAGE);
-            sharedFilesManager.loadSharedFiles();
-            downloadManager.createBlockRequests();
         } else {
             JOptionPane.showMessageDialog(this, "Selecione um ficheiro para descarregar!", "Erro",
                     JOptionPane.ERROR_MESSAGE);
@@ -225,20 +213,60 @@ public class App extends JFrame {
     public static void main(String[] args) {
         // Recebe porta e pasta compartilhada como parâmetros
         if (args.length < 2) {
-            System.out.println("Uso: java App.java <porta> <caminho_da_pasta>");
+            System.out.println("Uso: java App.java <porta> <caminho_da_pasta> [tamanho_do_bloco_KB]");
             System.exit(1);
         }
 
         int port = Integer.parseInt(args[0]);
         String sharedFolderPath = args[1];
 
+        // Tamanho de bloco opcional (os ficheiros grandes usam automaticamente blocos maiores)
+        int blockSize = DownloadTaskManager.DEFAULT_BLOCK_SIZE;
+        if (args.length >= 3) {
+            blockSize = Integer.parseInt(args[2]) * 1024;
+            if (blockSize <= 0 || blockSize > FileBlockIndex.MAX_BLOCK_SIZE) {
+                System.out.println("Tamanho de bloco inválido: deve estar entre 1 e "
+                        + FileBlockIndex.MAX_BLOCK_SIZE / 1024 + " KB.");
+                System.exit(1);
+            }
+        }
+
         try {
             // Criar a GUI da aplicação
-            App app = new App(sharedFolderPath, port);
+            App app = new App(sharedFolderPath, port, blockSize);
             app.setVisible(true);
         } catch (UnknownHostException e) {
             JOptionPane.showMessageDialog(null, "Erro ao obter o IP do computador.", "Erro", JOptionPane.ERROR_MESSAGE);
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    // Linha da lista de resultados: um ficheiro e os nós que têm o mesmo conteúdo (partilhados pelas linhas com o
+    // mesmo hash)
+    private static class ResultRow {
+        private final String fileName;
+        private final long fileSize;
+        private final String checksum;
+        private final Set<NodeConnection> holders;
+
+        ResultRow(String fileName, long fileSize, String checksum, Set<NodeConnection> holders) {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.checksum = checksum;
+            this.holders = holders;
+        }
+
+        String getFileName() {
+            return fileName;
+        }
+
+        String getChecksum() {
+            return checksum;
+        }
+
+        @Override
+        public String toString() {
+            return fileName + " | Tamanho: " + convertBytes(fileSize) + " | Nós: " + holders.size();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Set;
+
+// Classe que guarda as listas de hashes dos blocos na pasta partilhada, junto da cache de checksums, para que não
+// sejam calculadas de novo depois de reiniciar
+//
+// Cada lista fica num ficheiro da pasta oculta .blockhashes, com o nome checksum.tamanho_do_bloco.
+public class BlockHashStore {
+    private static final String STORE_FOLDER = ".blockhashes"; // Pasta oculta, ignorada na partilha
+
+    private final Path folder;
+
+    public BlockHashStore(String sharedFolderPath) {
+        this.folder = Paths.get(sharedFolderPath, STORE_FOLDER);
+    }
+
+    // Método para ler a lista guardada de um ficheiro (null se não existir ou não tiver o tamanho esperado)
+    public byte[] load(String fileChecksum, int blockSize, int totalBlocks) {
+        Path file = folder.resolve(fileName(fileChecksum, blockSize));
+        try {
+            if (!Files.isRegularFile(file) || Files.size(file) != (long) totalBlocks * FileHasher.HASH_BYTES) {
+                return null;
+            }
+            return Files.readAllBytes(file);
+        } catch (IOException e) {
+            System.out.println("Erro ao ler hashes dos blocos: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Método para guardar a lista de um ficheiro (escreve num ficheiro temporário e substitui o anterior)
+    public void save(String fileChecksum, int blockSize, byte[] blockHashes) {
+        Path file = folder.resolve(fileName(fileChecksum, blockSize));
+        Path tempFile = folder.resolve(fileName(fileChecksum, blockSize) + ".tmp");
+        try {
+            Files.createDirectories(folder);
+            Files.write(tempFile, blockHashes);
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Erro ao guardar hashes dos blocos: " + e.getMessage());
+        }
+    }
+
+    // Método para apagar as listas de ficheiros que deixaram de ser partilhados
+    public void retain(Set<String> fileChecksums) {
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                int separator = name.indexOf('.');
+                if (separator < 0 || !fileChecksums.contains(name.substring(0, separator))) {
+                    Files.deleteIfExists(entry);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Erro ao limpar hashes dos blocos: " + e.getMessage());
+        }
+    }
+
+    private static String fileName(String fileChecksum, int blockSize) {
+        return fileChecksum + "." + blockSize;
+    }
+}
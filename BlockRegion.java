@@ -0,0 +1,68 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// Classe que representa um bloco de um ficheiro partilhado ainda no disco
+//
+// O servidor envia o cabeçalho da trama BLOCK_DATA e depois copia os dados do ficheiro diretamente para o socket
+// com FileChannel.transferTo, sem os passar por um byte[] em memória.
+public class BlockRegion {
+    private final FileBlockIndex fileIndex;
+    private final int blockIndex;
+    private final NodeConnection originNode;
+
+    public BlockRegion(FileBlockIndex fileIndex, int blockIndex, NodeConnection originNode) {
+        this.fileIndex = fileIndex;
+        this.blockIndex = blockIndex;
+        this.originNode = originNode;
+    }
+
+    public String getFileChecksum() {
+        return fileIndex.getFileChecksum();
+    }
+
+    public String getFileName() {
+        return fileIndex.getFileName();
+    }
+
+    public int getBlockIndex() {
+        return blockIndex;
+    }
+
+    public NodeConnection getOriginNode() {
+        return originNode;
+    }
+
+    public long getPosition() {
+        return fileIndex.getBlockOffset(blockIndex);
+    }
+
+    public int getLength() {
+        return fileIndex.getBlockLength(blockIndex);
+    }
+
+    // Método para enviar os dados a partir de offset; devolve os bytes enviados (0 se o socket estiver cheio)
+    public long transferTo(WritableByteChannel target, long offset) throws IOException {
+        FileChannel channel = fileIndex.getChannel();
+        long position = getPosition() + offset;
+        long sent = channel.transferTo(position, getLength() - offset, target);
+        if (sent == 0 && position >= channel.size()) {
+            throw new IOException("Fim de ficheiro inesperado em " + getFileName());
+        }
+        return sent;
+    }
+
+    // Método para ler os dados do bloco para memória, usando uma leitura posicional
+    public byte[] read() throws IOException {
+        FileChannel channel = fileIndex.getChannel();
+        byte[] data = new byte[getLength()];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, getPosition() + buffer.position()) < 0) {
+                throw new IOException("Fim de ficheiro inesperado em " + getFileName());
+            }
+        }
+        return data;
+    }
+}
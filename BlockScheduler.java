@@ -0,0 +1,153 @@
+import java.util.*;
+
+// Classe que distribui os blocos de um download pelos nós que têm o ficheiro
+//
+// Cada nó pede o próximo bloco quando tem espaço na sua janela de pedidos, por isso os nós mais rápidos recebem
+// mais blocos. Perto do fim, um nó cuja estimativa de entrega seja muito pior do que a do melhor nó deixa de
+// receber blocos novos, e quando já só faltam alguns blocos (modo end-game) os blocos pendentes são pedidos
+// também a outros nós, para que um nó lento não atrase o fim do download.
+public class BlockScheduler {
+    private static final int ENDGAME_BLOCKS = 8; // Blocos pendentes a partir dos quais se entra em end-game
+    private static final int MAX_DUPLICATE_REQUESTS = 2; // Nós a quem o mesmo bloco pode ser pedido em end-game
+    private static final double SLOW_PEER_FACTOR = 2.0;
+    private static final int AVOID_SCAN_LIMIT = 64;
+
+    private final PartFile partFile;
+    private final BlockVerifier verifier;
+    private final int blockSize;
+    private final Deque<Integer> pendingBlocks;
+    private final Map<Integer, Set<NodeConnection>> inFlightBlocks = new LinkedHashMap<>(); // Pela ordem dos pedidos
+    private final Map<NodeConnection, PeerDownloadWindow> windows = new HashMap<>();
+    private int duplicateRequests;
+
+    public BlockScheduler(PartFile partFile, BlockVerifier verifier, int blockSize) {
+        this.partFile = partFile;
+        this.verifier = verifier;
+        this.blockSize = blockSize;
+        this.pendingBlocks = new ArrayDeque<>(partFile.getMissingBlocks());
+    }
+
+    // Método para registar um nó e a sua janela de pedidos (usada para estimar a sua velocidade)
+    public synchronized void register(NodeConnection node, PeerDownloadWindow window) {
+        windows.put(node, window);
+    }
+
+    // Método para retirar um nó do download
+    public synchronized void unregister(NodeConnection node) {
+        windows.remove(node);
+        notifyAll();
+    }
+
+    public boolean isComplete() {
+        return partFile.isComplete();
+    }
+
+    public synchronized int getDuplicateRequests() {
+        return duplicateRequests;
+    }
+
+    // Método para obter o próximo bloco a pedir a um nó; devolve null se não houver nenhum dentro do tempo dado
+    public synchronized Integer nextBlock(NodeConnection node, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!partFile.isComplete()) {
+            Integer blockIndex = pickBlock(node);
+            if (blockIndex != null) {
+                return blockIndex;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            wait(remaining);
+        }
+        return null;
+    }
+
+    // Método para registar um bloco recebido e verificado
+    public synchronized void onBlockReceived(int blockIndex) {
+        inFlightBlocks.remove(blockIndex);
+        notifyAll();
+    }
+
+    // Método para registar um bloco que o nó não conseguiu entregar (erro ou bloco corrompido)
+    public synchronized void onBlockFailed(int blockIndex, NodeConnection node) {
+        Set<NodeConnection> requestedFrom = inFlightBlocks.get(blockIndex);
+        if (requestedFrom != null) {
+            requestedFrom.remove(node);
+            if (requestedFrom.isEmpty()) {
+                inFlightBlocks.remove(blockIndex);
+            }
+        }
+        // Se nenhum outro nó tem o bloco pendente, volta para o início da fila
+        if (requestedFrom == null || requestedFrom.isEmpty()) {
+            if (!partFile.isBlockReceived(blockIndex) && !pendingBlocks.contains(blockIndex)) {
+                pendingBlocks.addFirst(blockIndex);
+            }
+        }
+        notifyAll();
+    }
+
+    private Integer pickBlock(NodeConnection node) {
+        if (!pendingBlocks.isEmpty()) {
+            if (isTooSlowForTail(node)) {
+                return null;
+            }
+            Iterator<Integer> iterator = pendingBlocks.iterator();
+            for (int scanned = 0; iterator.hasNext() && scanned < AVOID_SCAN_LIMIT; scanned++) {
+                int blockIndex = iterator.next();
+                if (!verifier.shouldAvoid(blockIndex, node)) {
+                    iterator.remove();
+                    inFlightBlocks.computeIfAbsent(blockIndex, index -> new HashSet<>()).add(node);
+                    return blockIndex;
+                }
+            }
+            return null;
+        }
+
+        // Modo end-game: pedir também a este nó os últimos blocos pendentes noutros nós
+        if (inFlightBlocks.size() <= ENDGAME_BLOCKS) {
+            for (Map.Entry<Integer, Set<NodeConnection>> entry : inFlightBlocks.entrySet()) {
+                Set<NodeConnection> requestedFrom = entry.getValue();
+                if (!requestedFrom.contains(node) && requestedFrom.size() < MAX_DUPLICATE_REQUESTS
+                        && !verifier.shouldAvoid(entry.getKey(), node)) {
+                    requestedFrom.add(node);
+                    duplicateRequests++;
+                    return entry.getKey();
+                }
+            }
+        }
+        return null;
+    }
+
+    // Perto do fim do download, um nó muito mais lento do que o melhor não recebe blocos novos
+    private boolean isTooSlowForTail(NodeConnection node) {
+        int capacity = 0;
+        for (PeerDownloadWindow window : windows.values()) {
+            capacity += window.getWindow();
+        }
+        if (windows.size() < 2 || pendingBlocks.size() >= capacity) {
+            return false;
+        }
+        double ownEstimate = estimateDeliveryMs(windows.get(node));
+        if (Double.isNaN(ownEstimate)) {
+            return false;
+        }
+        double bestEstimate = Double.MAX_VALUE;
+        for (PeerDownloadWindow window : windows.values()) {
+            double estimate = estimateDeliveryMs(window);
+            if (!Double.isNaN(estimate)) {
+                bestEstimate = Math.min(bestEstimate, estimate);
+            }
+        }
+        return ownEstimate > SLOW_PEER_FACTOR * bestEstimate;
+    }
+
+    // Tempo estimado para um nó entregar mais um bloco, a partir do seu RTT e débito (NaN se ainda não medido)
+    private double estimateDeliveryMs(PeerDownloadWindow window) {
+        if (window == null || window.getThroughputBytesPerSecond() <= 0) {
+            return Double.NaN;
+        }
+        double queuedBytes = (double) (window.getInFlight() + 1) * blockSize;
+        return window.getSmoothedRttMs() + queuedBytes * 1000 / window.getThroughputBytesPerSecond();
+    }
+}
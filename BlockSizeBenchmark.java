@@ -0,0 +1,67 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Benchmark que compara o débito de um download local e o overhead de metadados para vários tamanhos de bloco
+// Uso: java BlockSizeBenchmark [tamanho_do_ficheiro_MB]
+public class BlockSizeBenchmark {
+    private static final int[] BLOCK_SIZES = { 10 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024 };
+
+    public static void main(String[] args) throws Exception {
+        int fileSizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        PrintStream out = System.out;
+        Path root = Files.createTempDirectory("benchmark");
+        byte[] data = new byte[fileSizeMB * 1024 * 1024];
+        new Random(42).nextBytes(data);
+
+        out.printf("Ficheiro de %d MB, download local entre dois nós%n", fileSizeMB);
+        out.printf("%10s %8s %12s %12s %14s %10s%n", "Bloco", "Blocos", "Tempo (ms)", "Débito",
+                "Metadados", "Overhead");
+
+        int basePort = 40000 + new Random().nextInt(10000);
+        for (int i = 0; i < BLOCK_SIZES.length; i++) {
+            Path seederFolder = Files.createDirectories(root.resolve("seeder" + i));
+            Path leecherFolder = Files.createDirectories(root.resolve("leecher" + i));
+            Files.write(seederFolder.resolve("benchmark.bin"), data);
+
+            // Os registos dos nós são descartados durante a medição
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            DownloadTaskManager seeder = new DownloadTaskManager(new SharedFilesManager(seederFolder.toString()),
+                    "127.0.0.1", basePort + 2 * i, BLOCK_SIZES[i]);
+            new ConnectionManager(seeder).startServer();
+            DownloadTaskManager leecher = new DownloadTaskManager(new SharedFilesManager(leecherFolder.toString()),
+                    "127.0.0.1", basePort + 2 * i + 1, BLOCK_SIZES[i]);
+            leecher.connectToNode("127.0.0.1", basePort + 2 * i);
+
+            long start = System.nanoTime();
+            Map<String, Integer> blocksSent = leecher.requestDownloadToNodes("benchmark.bin");
+            long elapsedNanos = System.nanoTime() - start;
+            System.setOut(out);
+
+            FileBlockIndex fileIndex = seeder.getBlockProvider().getFileIndexByName("benchmark.bin");
+            int totalBlocks = fileIndex.getTotalBlocks();
+            long metadataBytes = metadataBytes(fileIndex);
+            double seconds = elapsedNanos / 1_000_000_000.0;
+            out.printf("%10s %8d %12.1f %10s/s %14s %9.3f%%%s%n", App.convertBytes(fileIndex.getBlockSize()),
+                    totalBlocks, elapsedNanos / 1_000_000.0, App.convertBytes((long) (data.length / seconds)),
+                    App.convertBytes(metadataBytes), 100.0 * metadataBytes / data.length,
+                    blocksSent == null ? " (falhou)" : "");
+        }
+        System.exit(0);
+    }
+
+    // Bytes de metadados de um download: lista de hashes, pedidos BLOCK e cabeçalhos das respostas
+    private static long metadataBytes(FileBlockIndex fileIndex) throws IOException {
+        long requestFrame = frameSize(new BlockMessage(fileIndex.getFileChecksum(), 0));
+        long responseHeader = frameSize(new FileBlockRequestMessage(fileIndex.getFileName(), 0, 0, new byte[0],
+                fileIndex.getFileChecksum(), new NodeConnection("127.0.0.1", 0)));
+        long hashList = (long) fileIndex.getTotalBlocks() * FileHasher.HASH_BYTES;
+        return hashList + fileIndex.getTotalBlocks() * (requestFrame + responseHeader);
+    }
+
+    private static long frameSize(Object message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MessageCodec.writeFrame(new DataOutputStream(bytes), 1, message);
+        return bytes.size();
+    }
+}
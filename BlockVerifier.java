@@ -0,0 +1,48 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Classe que verifica cada bloco recebido contra a lista de hashes e regista os nós que enviam blocos corrompidos
+public class BlockVerifier {
+    private final byte[] blockHashes; // null se nenhum nó enviou a lista de hashes
+    private final Map<Integer, Set<NodeConnection>> badSources = new ConcurrentHashMap<>();
+    private final Map<NodeConnection, AtomicInteger> badBlocksByNode = new ConcurrentHashMap<>();
+    private final AtomicInteger activeNodes;
+
+    public BlockVerifier(byte[] blockHashes, int activeNodes) {
+        this.blockHashes = blockHashes;
+        this.activeNodes = new AtomicInteger(activeNodes);
+    }
+
+    // Método para verificar um bloco; sem lista de hashes todos os blocos são aceites
+    public boolean verify(int blockIndex, byte[] data) {
+        if (blockHashes == null) {
+            return true;
+        }
+        int offset = blockIndex * FileHasher.HASH_BYTES;
+        if (offset < 0 || offset + FileHasher.HASH_BYTES > blockHashes.length) {
+            return false;
+        }
+        byte[] hash = FileHasher.sha256(data);
+        return Arrays.equals(hash, 0, hash.length, blockHashes, offset, offset + FileHasher.HASH_BYTES);
+    }
+
+    // Método para registar um bloco corrompido; devolve o número de blocos corrompidos enviados pelo nó
+    public int reportBadBlock(int blockIndex, NodeConnection node) {
+        badSources.computeIfAbsent(blockIndex, index -> ConcurrentHashMap.newKeySet()).add(node);
+        return badBlocksByNode.computeIfAbsent(node, key -> new AtomicInteger()).incrementAndGet();
+    }
+
+    // Método para saber se um bloco deve ser pedido a outro nó (este já o enviou corrompido)
+    public boolean shouldAvoid(int blockIndex, NodeConnection node) {
+        Set<NodeConnection> sources = badSources.get(blockIndex);
+        return sources != null && sources.contains(node) && activeNodes.get() > sources.size();
+    }
+
+    // Método chamado quando um nó deixa de participar no download
+    public void nodeStopped() {
+        activeNodes.decrementAndGet();
+    }
+}
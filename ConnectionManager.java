@@ -1,15 +1,22 @@
 import java.io.*;
-import java.math.BigInteger;
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.security.*;
-import java.nio.file.Files;
+import java.util.function.Consumer;
 
+// Servidor não bloqueante: uma única thread com um Selector aceita as ligações e lê/escreve em todos os sockets,
+// e os pedidos completos são processados num conjunto limitado de threads. Um cliente lento deixa de ser lido
+// enquanto tiver demasiadas respostas por receber, por isso não ocupa memória nem threads dos outros clientes.
 public class ConnectionManager {
+    private static final int MAX_SEARCH_RESULTS = 100; // Resultados enviados por pesquisa
+    private static final int WORKER_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
     private DownloadTaskManager downloadManager;
-    private ServerSocket serverSocket;
-    private ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(5);
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(WORKER_THREADS);
+    // Ligações cujo interesse no selector tem de ser recalculado (só a thread do selector altera as chaves)
+    private final Queue<ServerConnection> pendingUpdates = new ConcurrentLinkedQueue<>();
 
     public ConnectionManager(DownloadTaskManager downloadManager) {
         this.downloadManager = downloadManager;
@@ -18,152 +25,269 @@ public class ConnectionManager {
     // Iniciar o servidor para escutar na porta especificada
     public void startServer() {
         try {
-            serverSocket = new ServerSocket(downloadManager.getPort());
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(downloadManager.getPort()), 1024);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
             System.out.println("Servidor iniciado no IP " + downloadManager.getIpAddress() + " e porta "
                     + downloadManager.getPort());
 
-            // Thread para escutar conexões
-            new Thread(() -> {
-                while (true) {
-                    try {
-                        Socket clientSocket = serverSocket.accept();
-                        System.out.println("Conexão recebida de " + clientSocket.getInetAddress().getHostAddress());
-
-                        // Processar o pedido do cliente usando ThreadPoolExecutor
-                        executor.execute(() -> handleClientRequest(clientSocket));
-                    } catch (IOException e) {
-                        System.out.println("Erro ao aceitar conexão: " + e.getMessage());
-                    }
-                }
-            }).start();
+            // Thread que trata todas as ligações
+            new Thread(this::selectorLoop, "servidor-" + downloadManager.getPort()).start();
         } catch (IOException e) {
             System.out.println("Erro ao iniciar o servidor: " + e.getMessage());
         }
     }
 
-    // Método para processar pedidos do cliente
-    private void handleClientRequest(Socket clientSocket) {
-        try (ObjectOutputStream objectOut = new ObjectOutputStream(clientSocket.getOutputStream());
-                ObjectInputStream objectIn = new ObjectInputStream(clientSocket.getInputStream())) {
+    private void selectorLoop() {
+        while (true) {
             try {
-                Message request = (Message) objectIn.readObject();
-
-                // Verificar o tipo de pedido
-                // Pedido de conexão
-                if (request != null && request.getType().equals("HELLO")) {
-                    handleHello(request, objectOut, objectIn);
+                selector.select();
+                ServerConnection updated;
+                while ((updated = pendingUpdates.poll()) != null) {
+                    // Terminaram pedidos desta ligação: processar as tramas que ficaram à espera no buffer
+                    dispatchBuffered(updated);
+                    updateInterest(updated);
                 }
-                // Pedido de pesquisa
-                else if (request != null && request.getType().equals("SEARCH")) {
-                    handleSearch(request, objectOut, objectIn);
-                    // Pedido de download
-                } else if (request != null && request.getType().equals("DOWNLOAD")) {
-                    handleDownload(request, objectOut, objectIn);
-                } else if (request != null && request.getType().equals("BLOCK")) {
-                    handleBlockRequest(request, objectOut, objectIn);
-                } else {
-                    System.out.println("Pedido inválido recebido.");
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptConnections();
+                    } else {
+                        handleReady(key, (ServerConnection) key.attachment());
+                    }
                 }
-            } catch (ClassNotFoundException e) {
-                System.out.println("Erro ao ler pedido do cliente: " + e.getMessage());
+            } catch (IOException e) {
+                System.out.println("Erro no servidor: " + e.getMessage());
+            }
+        }
+    }
+
+    // Método para aceitar todas as ligações pendentes
+    private void acceptConnections() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                ServerConnection connection = new ServerConnection(channel);
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+                System.out.println("Conexão recebida de " + connection.getRemoteAddress());
+            } catch (IOException e) {
+                System.out.println("Erro ao aceitar conexão: " + e.getMessage());
+                channel.close();
+            }
+        }
+    }
+
+    // Método para ler os pedidos e enviar as respostas de uma ligação pronta
+    private void handleReady(SelectionKey key, ServerConnection connection) {
+        try {
+            if (key.isWritable()) {
+                connection.write();
             }
+            if (key.isValid() && key.isReadable() && !connection.read()) {
+                System.out.println("Ligação terminada por " + connection.getRemoteAddress());
+                connection.close();
+                return;
+            }
+            dispatchBuffered(connection);
+            updateInterest(connection);
         } catch (IOException e) {
             System.out.println("Erro ao processar pedido do cliente: " + e.getMessage());
+            connection.close();
         }
     }
 
-    private void handleHello(Message message, ObjectOutputStream objectOut, ObjectInputStream objectIn) {
+    // Método para processar as tramas recebidas de uma ligação; só são descodificadas as tramas para as quais há
+    // lugar entre os pedidos em processamento
+    private void dispatchBuffered(ServerConnection connection) {
+        SelectionKey key = connection.getKey();
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            for (MessageEnvelope envelope : connection.takeRequests()) {
+                dispatch(connection, envelope);
+            }
+        } catch (IOException e) {
+            System.out.println("Erro ao processar pedido do cliente: " + e.getMessage());
+            connection.close();
+        }
+    }
+
+    // Método para processar um pedido numa thread do executor e pôr a resposta na fila da ligação
+    private void dispatch(ServerConnection connection, MessageEnvelope envelope) throws IOException {
+        if (!(envelope.getPayload() instanceof Message)) {
+            throw new IOException("Pedido inválido recebido.");
+        }
+        if (envelope.getRequestId() == 0) {
+            // Mensagem sem resposta: tratada já, para que os anúncios de um nó sejam aplicados pela ordem de envio
+            handleOneWay((Message) envelope.getPayload());
+            return;
+        }
+        // Vários pedidos da mesma ligação podem ser processados em paralelo
+        connection.requestStarted();
+        executor.execute(() -> {
+            if (envelope.getPayload() instanceof SearchMessage) {
+                // A resposta a uma pesquisa segue em várias partes, à medida que os outros nós respondem
+                handleSearch((SearchMessage) envelope.getPayload(),
+                        results -> sendSearchResults(connection, envelope.getRequestId(), results));
+                return;
+            }
+            try {
+                Object response = handleMessage((Message) envelope.getPayload());
+                if (response instanceof BlockRegion) {
+                    // Os dados do bloco vão do ficheiro para o socket sem passar pela memória da aplicação
+                    BlockRegion block = (BlockRegion) response;
+                    connection.enqueue(MessageCodec.encodeBlockHeader(envelope.getRequestId(), block), block);
+                } else {
+                    connection.enqueue(MessageCodec.encodeFrame(envelope.getRequestId(), response));
+                }
+            } catch (IOException e) {
+                System.out.println("Erro ao enviar resposta ao cliente: " + e.getMessage());
+            } finally {
+                connection.requestFinished();
+                pendingUpdates.add(connection);
+                selector.wakeup();
+            }
+        });
+    }
+
+    // Método para pôr uma parte dos resultados de uma pesquisa na fila da ligação; o pedido termina com a última
+    private void sendSearchResults(ServerConnection connection, long requestId, SearchResultsMessage results) {
+        try {
+            connection.enqueue(MessageCodec.encodeFrame(requestId, results));
+        } catch (IOException e) {
+            System.out.println("Erro ao enviar resposta ao cliente: " + e.getMessage());
+        } finally {
+            if (results.isLast()) {
+                connection.requestFinished();
+            }
+            pendingUpdates.add(connection);
+            selector.wakeup();
+        }
+    }
+
+    private void updateInterest(ServerConnection connection) {
+        SelectionKey key = connection.getKey();
+        if (key != null && key.isValid()) {
+            key.interestOps(connection.interestOps());
+        }
+    }
+
+    // Método para tratar uma mensagem que não tem resposta
+    private void handleOneWay(Message message) {
+        if (message instanceof AnnounceMessage) {
+            downloadManager.handleAnnouncement((AnnounceMessage) message);
+        } else {
+            System.out.println("Mensagem sem resposta inválida recebida: " + message.getType());
+        }
+    }
+
+    // Método para encaminhar um pedido para o tratamento adequado
+    private Object handleMessage(Message request) {
+        // Verificar o tipo de pedido
+        // Pedido de conexão
+        if (request != null && request.getType().equals("HELLO")) {
+            return handleHello(request);
+        }
+        // Pedido de download
+        else if (request != null && request.getType().equals("DOWNLOAD")) {
+            return handleDownload(request);
+        } else if (request != null && request.getType().equals("BLOCK")) {
+            return handleBlockRequest(request);
+        } else if (request != null && request.getType().equals("PEX")) {
+            return handlePeerExchange(request);
+        } else {
+            System.out.println("Pedido inválido recebido.");
+            return null;
+        }
+    }
+
+    private HelloMessage handleHello(Message message) {
         HelloMessage helloMessage = (HelloMessage) message;
         String ipAddress = helloMessage.getIpAddress();
         int port = helloMessage.getPort();
         NodeConnection nodeConnection = new NodeConnection(ipAddress, port);
         System.out.println("Pedido de conexão recebido de " + ipAddress + ":" + port);
         downloadManager.addActiveConnection(nodeConnection);
-        try {
-            HelloMessage response = new HelloMessage(downloadManager.getIpAddress(), downloadManager.getPort());
-            objectOut.writeObject(response);
-        } catch (IOException e) {
-            System.out.println("Erro ao enviar resposta HELLO: " + e.getMessage());
-        }
+        return new HelloMessage(downloadManager.getIpAddress(), downloadManager.getPort());
     }
 
-    private void handleSearch(Message message, ObjectOutputStream objectOut, ObjectInputStream objectIn) {
-        SearchMessage searchMessage = (SearchMessage) message;
+    // Método para trocar listas de nós: os nós recebidos ficam como ligações possíveis e a resposta leva os nós
+    // ligados a este
+    private PeerExchangeMessage handlePeerExchange(Message message) {
+        PeerExchangeMessage peerExchange = (PeerExchangeMessage) message;
+        downloadManager.addCandidatePeers(peerExchange.getPeers());
+        return new PeerExchangeMessage(downloadManager.getPeersToShare());
+    }
+
+    private void handleSearch(SearchMessage searchMessage, Consumer<SearchResultsMessage> reply) {
         String keyword = searchMessage.getQuery(); // Extrair o termo de busca
+        if (!downloadManager.acceptSearch(searchMessage)) {
+            // A mesma pesquisa já chegou por outro caminho
+            reply.accept(new SearchResultsMessage(new ArrayList<>(), true));
+            return;
+        }
         System.out.println("Pedido de busca recebido: \"" + keyword + "\"");
-        List<File> searchResults = downloadManager.getSharedFilesManager().searchFiles(keyword);
-        List<String> results = new ArrayList<>();
-        try {
-            for (File file : searchResults) {
-                // Calcular o hash do ficheiro
-                byte[] data = Files.readAllBytes(file.toPath());
-                byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
-                String checksum = new BigInteger(1, hash).toString(16);
-                results.add(file.getName() + ":" + file.length() + ":" + checksum); // Adicionar resultados
+        List<File> searchResults = downloadManager.getSharedFilesManager().searchFiles(keyword, MAX_SEARCH_RESULTS);
+        List<SearchResult> results = new ArrayList<>();
+        NodeConnection localNode = new NodeConnection(downloadManager.getIpAddress(), downloadManager.getPort());
+        for (File file : searchResults) {
+            // Obter o hash do ficheiro da cache (um ficheiro alterado é atualizado pela vigilância da pasta)
+            String checksum = downloadManager.getSharedFilesManager().getCachedChecksum(file);
+            if (checksum != null) {
+                // Os ficheiros são identificados pelo caminho relativo à pasta partilhada
+                results.add(new SearchResult(downloadManager.getSharedFilesManager().getRelativePath(file),
+                        file.length(), checksum, localNode));
             }
-            SearchResultsMessage response = new SearchResultsMessage(results); // Criar mensagem de resposta
-            objectOut.writeObject(response); // Enviar resultados
-        } catch (NoSuchAlgorithmException | IOException e) {
-            System.out.println("Erro ao criar instância de MessageDigest: " + e.getMessage());
         }
-
         System.out.println("Resultados enviados para o cliente.");
+        // Reencaminhar a pesquisa para os outros nós, se ainda puder dar mais saltos
+        downloadManager.forwardSearch(searchMessage, results, reply);
     }
 
-    private void handleDownload(Message message, ObjectOutputStream objectOut, ObjectInputStream objectIn) {
+    private DownloadResultMessage handleDownload(Message message) {
         DownloadMessage downloadMessage = (DownloadMessage) message;
         String fileName = downloadMessage.getFileName();
-        String checksum = "";
         System.out.println("Pedido de download recebido: " + fileName);
-        File file = downloadManager.getSharedFilesManager().getFileByName(fileName);
-        if (file != null) {
-            System.out.println("Ficheiro encontrado: " + file.getName());
-            int fileBlocks = 0;
-            try {
-                byte[] data = Files.readAllBytes(file.toPath());
-                byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
-                checksum = new BigInteger(1, hash).toString(16);
-            } catch (NoSuchAlgorithmException | IOException e) {
-                System.out.println("Erro ao criar instância de MessageDigest: " + e.getMessage());
-            }
-            for (FileBlockRequestMessage blockMessage : downloadManager.getBlockRequestMessages()) {
-                if (blockMessage.getFileName().equals(fileName)) {
-                    fileBlocks++;
-                }
-            }
-            DownloadResultMessage response = new DownloadResultMessage(checksum, true, fileBlocks);
-            try {
-                objectOut.writeObject(response); // Enviar resposta de sucesso
-                System.out.println("Resposta de download enviada para o cliente.");
-            } catch (IOException e) {
-                System.out.println("Erro ao enviar resposta de download: " + e.getMessage());
-            }
-        } else {
-            DownloadResultMessage response = new DownloadResultMessage(checksum, false, 0);
-            try {
-                objectOut.writeObject(response); // Enviar resposta de falha
-                System.out.println("Resposta de download enviada para o cliente.");
-            } catch (IOException e) {
-                System.out.println("Erro ao enviar resposta de download: " + e.getMessage());
+        // Um pedido com checksum procura o conteúdo, que neste nó pode ter outro nome
+        String checksum = downloadMessage.getChecksum();
+        FileBlockIndex fileIndex = checksum != null && !checksum.isEmpty()
+                ? downloadManager.getBlockProvider().getFileIndex(checksum)
+                : downloadManager.getBlockProvider().getFileIndexByName(fileName);
+        if (fileIndex != null) {
+            System.out.println("Ficheiro encontrado: " + fileIndex.getFileName());
+            // Enviar também o hash de cada bloco, para que o cliente possa verificar os blocos recebidos
+            // (calculados em segundo plano quando o ficheiro foi registado; se ainda não estiverem prontos, o
+            // cliente verifica só o ficheiro completo)
+            byte[] blockHashes = fileIndex.getBlockHashes();
+            if (blockHashes == null) {
+                System.out.println("Hashes dos blocos de " + fileIndex.getFileName() + " ainda em cálculo.");
             }
+            return new DownloadResultMessage(fileIndex.getFileChecksum(), true, fileIndex.getTotalBlocks(),
+                    fileIndex.getFileSize(), fileIndex.getBlockSize(), blockHashes);
         }
+        return new DownloadResultMessage("", false, 0, 0, 0, null); // Resposta de falha
     }
 
-    private void handleBlockRequest(Message message, ObjectOutputStream objectOut, ObjectInputStream objectIn) {
-            BlockMessage blockMessage = (BlockMessage) message;
-            String fileChecksum = blockMessage.getChecksum();
-            int blockIndex = blockMessage.getBlockIndex();
-            for (FileBlockRequestMessage fileBlockMessage : downloadManager.getBlockRequestMessages()) {
-                if (fileBlockMessage.getFileChecksum().equals(fileChecksum)
-                && fileBlockMessage.getBlockIndex() == blockIndex) {
-                    try {
-                        objectOut.writeObject(fileBlockMessage); // Enviar bloco de ficheiro
-                        System.out.println("Bloco de ficheiro " + blockIndex + " enviado para o cliente.");
-                        break;
-                    } catch (IOException e) {
-                        System.out.println("Erro ao enviar bloco de ficheiro: " + e.getMessage());
-                    }
-                }
-            }
+    private BlockRegion handleBlockRequest(Message message) {
+        BlockMessage blockMessage = (BlockMessage) message;
+        String fileChecksum = blockMessage.getChecksum();
+        int blockIndex = blockMessage.getBlockIndex();
+        // Os dados só são lidos do disco quando a resposta é enviada
+        BlockRegion block = downloadManager.getBlockProvider().getBlock(fileChecksum, blockIndex,
+                new NodeConnection(downloadManager.getIpAddress(), downloadManager.getPort()));
+        if (block == null) {
+            System.out.println("Bloco de ficheiro " + blockIndex + " não encontrado.");
+        }
+        return block;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,144 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.BitSet;
+
+// Classe que guarda no disco quais os blocos de um download que já foram recebidos
+//
+// Formato: MAGIC (int) | tamanho do ficheiro (long) | tamanho do bloco (int) | número de blocos (int)
+// | nome do ficheiro (UTF) | bitfield com um bit por bloco
+public class DownloadManifest implements Closeable {
+    private static final int MAGIC = 0x50524254; // "PRBT"
+
+    private final Path manifestPath;
+    private final BitSet receivedBlocks;
+    private final int totalBlocks;
+    private final long bitfieldOffset;
+    private final FileChannel channel;
+    private int receivedCount;
+
+    private DownloadManifest(Path manifestPath, BitSet receivedBlocks, int totalBlocks, long bitfieldOffset,
+            FileChannel channel) {
+        this.manifestPath = manifestPath;
+        this.receivedBlocks = receivedBlocks;
+        this.totalBlocks = totalBlocks;
+        this.bitfieldOffset = bitfieldOffset;
+        this.channel = channel;
+        this.receivedCount = receivedBlocks.cardinality();
+    }
+
+    // Método para abrir o manifesto de um download, retomando o anterior se corresponder ao mesmo ficheiro
+    public static DownloadManifest open(Path manifestPath, String fileName, long fileSize, int blockSize,
+            int totalBlocks) throws IOException {
+        BitSet receivedBlocks = readExisting(manifestPath, fileSize, blockSize, totalBlocks);
+        boolean resumed = receivedBlocks != null;
+        if (!resumed) {
+            receivedBlocks = new BitSet(totalBlocks);
+        }
+
+        // Escrever o cabeçalho (e o bitfield vazio, se for um download novo)
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        try (DataOutputStream header = new DataOutputStream(headerBytes)) {
+            header.writeInt(MAGIC);
+            header.writeLong(fileSize);
+            header.writeInt(blockSize);
+            header.writeInt(totalBlocks);
+            header.writeUTF(fileName);
+        }
+        FileChannel channel = FileChannel.open(manifestPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            writeFully(channel, ByteBuffer.wrap(headerBytes.toByteArray()), 0);
+            if (!resumed) {
+                channel.truncate(headerBytes.size());
+                writeFully(channel, ByteBuffer.allocate((totalBlocks + 7) / 8), headerBytes.size());
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new DownloadManifest(manifestPath, receivedBlocks, totalBlocks, headerBytes.size(), channel);
+    }
+
+    // Método para ler um manifesto existente; devolve null se não existir ou for de outro ficheiro
+    private static BitSet readExisting(Path manifestPath, long fileSize, int blockSize, int totalBlocks) {
+        if (!Files.isRegularFile(manifestPath)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifestPath)))) {
+            if (in.readInt() != MAGIC || in.readLong() != fileSize || in.readInt() != blockSize
+                    || in.readInt() != totalBlocks) {
+                return null;
+            }
+            in.readUTF();
+            byte[] bitfield = new byte[(totalBlocks + 7) / 8];
+            in.readFully(bitfield);
+            return BitSet.valueOf(bitfield);
+        } catch (IOException e) {
+            System.out.println("Manifesto de download inválido, a recomeçar: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public synchronized boolean hasBlock(int blockIndex) {
+        return receivedBlocks.get(blockIndex);
+    }
+
+    public synchronized int getReceivedCount() {
+        return receivedCount;
+    }
+
+    public int getTotalBlocks() {
+        return totalBlocks;
+    }
+
+    // Método para marcar um bloco como recebido; devolve false se já estava marcado
+    public synchronized boolean markReceived(int blockIndex) {
+        if (receivedBlocks.get(blockIndex)) {
+            return false;
+        }
+        receivedBlocks.set(blockIndex);
+        receivedCount++;
+        return true;
+    }
+
+    // Método para gravar o bitfield no disco
+    // Os dados do ficheiro parcial são gravados primeiro, para que um bit marcado corresponda sempre a um bloco
+    // que já está no disco
+    public void flush(FileChannel dataChannel) throws IOException {
+        byte[] bitfield;
+        synchronized (this) {
+            bitfield = new byte[(totalBlocks + 7) / 8];
+            byte[] bits = receivedBlocks.toByteArray();
+            System.arraycopy(bits, 0, bitfield, 0, Math.min(bits.length, bitfield.length));
+        }
+        dataChannel.force(false);
+        writeFully(channel, ByteBuffer.wrap(bitfield), bitfieldOffset);
+        channel.force(false);
+    }
+
+    // Método para apagar o manifesto (download concluído ou abandonado)
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(manifestPath);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            channel.close();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return manifestPath.getFileName() + " (" + getReceivedCount() + "/" + totalBlocks + " blocos)";
+    }
+}
@@ -1,15 +1,25 @@
 public class DownloadMessage extends Message {
     private String fileName;
+    private String checksum; // Se não estiver vazio, o ficheiro é procurado pelo conteúdo e não pelo nome
     
     public DownloadMessage(String fileName) {
+        this(fileName, "");
+    }
+
+    public DownloadMessage(String fileName, String checksum) {
         super("DOWNLOAD:" + fileName,"DOWNLOAD");
         this.fileName = fileName;
+        this.checksum = checksum;
     }
 
     public String getFileName() {
         return fileName;
     }
 
+    public String getChecksum() {
+        return checksum;
+    }
+
     @Override
     public String toString() {
         return "DOWNLOAD:" + fileName;
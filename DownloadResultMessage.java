@@ -2,12 +2,20 @@ public class DownloadResultMessage extends Message {
     private String checksum;
     private boolean hasFile;
     private int fileBlocks;
-    
-    public DownloadResultMessage(String checksum, boolean hasFile, int fileBlocks) {
-        super("DOWNLOAD_RESULT:" + hasFile + ":" + checksum + ":" + fileBlocks, "DOWNLOAD_RESULT");
+    private long fileSize;
+    private int blockSize; // Tamanho dos blocos usado por este nó para o ficheiro
+    private byte[] blockHashes; // SHA-256 de cada bloco, concatenados
+
+    public DownloadResultMessage(String checksum, boolean hasFile, int fileBlocks, long fileSize, int blockSize,
+            byte[] blockHashes) {
+        super("DOWNLOAD_RESULT:" + hasFile + ":" + checksum + ":" + fileBlocks + ":" + fileSize + ":" + blockSize,
+                "DOWNLOAD_RESULT");
         this.checksum = checksum;
         this.hasFile = hasFile;
         this.fileBlocks = fileBlocks;
+        this.fileSize = fileSize;
+        this.blockSize = blockSize;
+        this.blockHashes = blockHashes != null ? blockHashes : new byte[0];
     }
 
     public String getChecksum() {
@@ -22,8 +30,25 @@ public class DownloadResultMessage extends Message {
         return fileBlocks;
     }
 
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public byte[] getBlockHashes() {
+        return blockHashes;
+    }
+
+    // Método para verificar se a lista de hashes tem um hash por bloco
+    public boolean hasBlockHashes() {
+        return blockHashes.length == fileBlocks * FileHasher.HASH_BYTES;
+    }
+
     @Override
     public String toString() {
-        return "DOWNLOAD_RESULT:" + hasFile + ":" + checksum + ":" + fileBlocks;
+        return "DOWNLOAD_RESULT:" + hasFile + ":" + checksum + ":" + fileBlocks + ":" + fileSize + ":" + blockSize;
     }
 }
@@ -1,87 +1,197 @@
 import java.io.*;
-import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public class DownloadTaskManager {
     private SharedFilesManager sharedFilesManager;
-    private List<FileBlockRequestMessage> blockRequestMessages;
-    private static final int BLOCK_SIZE = 10240; // 10KB
+    private FileBlockProvider blockProvider;
+    public static final int DEFAULT_BLOCK_SIZE = 10240; // 10KB
+    private int blockSize; // Tamanho mínimo dos blocos dos ficheiros partilhados por este nó
     private String ipAddress;
     private int port;
-    private List<NodeConnection> activeConnections; // Lista de conexões ativas
-    private List<FileBlockRequestMessage> blockRequests = new ArrayList<>();
+    private PeerRegistry activeConnections = new PeerRegistry(); // Nós ligados, sem repetições
+    // Ligações persistentes aos nós; cada ligação nova a um nó registado começa com o anúncio de todos os ficheiros
+    // partilhados (as ligações a nós distantes, abertas só para um download, não recebem anúncios)
+    private PeerClientPool peerClients = new PeerClientPool(this::announceAllFiles);
+    private final FileAvailability fileAvailability = new FileAvailability(); // Ficheiros anunciados pelos nós
+    private static final int MAX_ANNOUNCED_FILES = 10000; // Ficheiros por mensagem de anúncio
+    private static final int MIN_PIPELINE_WINDOW = 4;
+    // Dados pedidos a cada nó no início de um download; com blocos grandes a janela começa com menos blocos
+    private static final int INITIAL_IN_FLIGHT_BYTES = 1024 * 1024;
+    private static final int MAX_BAD_BLOCKS = 3; // Blocos corrompidos tolerados por nó em cada download
+    private Map<NodeConnection, Integer> peerPenalties = new ConcurrentHashMap<>(); // Blocos corrompidos por nó
+    // Pedidos de blocos sem resposta, por nó; a ligação a um nó que ainda está a enviar blocos não é fechada
+    private final Map<NodeConnection, AtomicInteger> blockRequestsInFlight = new ConcurrentHashMap<>();
+    private static final int INITIAL_PIPELINE_WINDOW = 16; // Pedidos de blocos pendentes por nó no início
+    private static final int MAX_PIPELINE_WINDOW = 64; // A janela ajusta-se ao RTT de cada nó até este limite
+    private static final int MAX_IN_FLIGHT_BYTES = 16 * 1024 * 1024; // Limite de dados pendentes por nó
+    public static final long SEARCH_TIMEOUT_MS = 5000; // Prazo para os nós responderem a uma pesquisa
+    public static final int SEARCH_TTL = 3; // Saltos que uma pesquisa pode dar a partir deste nó
+    // Prazo de cada salto; um nó que reencaminha espera menos do que o nó anterior, para responder a tempo
+    private static final long SEARCH_HOP_TIMEOUT_MS = 1500;
+    private static final int MAX_KNOWN_HOLDERS = 10000; // Ficheiros com nós conhecidos através das pesquisas
+    private final RecentSearches recentSearches = new RecentSearches();
+    // Nós que anunciaram cada conteúdo (por checksum) nas últimas pesquisas, incluindo os que não estão ligados a este
+    // nó; o checksum evita misturar nós com ficheiros diferentes que têm o mesmo nome
+    private final Map<String, Set<NodeConnection>> knownHolders = new ConcurrentHashMap<>();
+    private static final long DOWNLOAD_PROBE_TIMEOUT_MS = 10000; // Prazo para os nós responderem a um DOWNLOAD
+    private static final long HEARTBEAT_TIMEOUT_MS = 3000; // Prazo para um nó responder ao heartbeat
+    private static final long HEARTBEAT_CHECK_MS = 1000; // Frequência com que se procuram heartbeats a enviar
+    private static final int CONNECT_THREADS = 8;
+    public static final int TARGET_PEERS = 8; // Ligações saudáveis que este nó tenta manter
+    private static final int MAX_PEX_PEERS = 50; // Nós enviados numa troca de nós
+    private static final int MAX_CANDIDATE_PEERS = 1000; // Nós conhecidos a que este nó ainda não está ligado
+    private static final int PEX_FANOUT = 3; // Nós a quem se pedem nós em cada ronda
+    private static final long PEX_INTERVAL_MS = 15000;
+    private static final long PEX_TIMEOUT_MS = 3000;
+    // Nós anunciados por outros nós, a que este nó se pode ligar quando tiver menos de TARGET_PEERS ligações
+    private final Set<NodeConnection> candidatePeers = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean exchangingPeers = new AtomicBoolean(false);
+    // Threads partilhadas para abrir ligações novas (a única parte bloqueante de um pedido a vários nós)
+    private final ThreadPoolExecutor connectExecutor = new ThreadPoolExecutor(CONNECT_THREADS, CONNECT_THREADS,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), daemonThreads("ligar-no"));
+    // Threads partilhadas pelos downloads, reutilizadas entre downloads
+    private final ExecutorService downloadWorkers = Executors.newCachedThreadPool(daemonThreads("download"));
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(
+            daemonThreads("heartbeat"));
 
     public DownloadTaskManager(SharedFilesManager sharedFilesManager, String ipAddress, int port) {
+        this(sharedFilesManager, ipAddress, port, DEFAULT_BLOCK_SIZE);
+    }
+
+    public DownloadTaskManager(SharedFilesManager sharedFilesManager, String ipAddress, int port, int blockSize) {
         this.sharedFilesManager = sharedFilesManager;
-        this.blockRequestMessages = new ArrayList<>();
+        this.blockSize = blockSize;
+        this.blockProvider = new FileBlockProvider(blockSize,
+                new BlockHashStore(sharedFilesManager.getSharedFolderPath()));
         this.ipAddress = ipAddress;
         this.port = port;
-        this.activeConnections = new ArrayList<>();
+        this.connectExecutor.allowCoreThreadTimeOut(true);
+
+        // Manter os blocos disponíveis atualizados quando a pasta partilhada muda
+        sharedFilesManager.addListener(new SharedFilesListener() {
+            @Override
+            public void fileAdded(String fileName, File file, String checksum) {
+                blockProvider.addFile(fileName, file, checksum);
+                FileBlockIndex fileIndex = blockProvider.getFileIndex(checksum);
+                if (fileIndex != null) {
+                    announceChanges(Collections.singletonMap(checksum, fileIndex.getBlockSize()),
+                            Collections.emptyList());
+                }
+            }
+
+            @Override
+            public void fileRemoved(String fileName, File file, String checksum) {
+                blockProvider.removeFile(fileName, file, checksum);
+                if (checksum != null && blockProvider.getFileIndex(checksum) == null) {
+                    announceChanges(Collections.emptyMap(), Collections.singletonList(checksum));
+                }
+            }
+
+            @Override
+            public void filesRemoved(Map<String, File> files, Map<String, String> checksums) {
+                Set<String> removed = new HashSet<>();
+                for (Map.Entry<String, File> entry : files.entrySet()) {
+                    String checksum = checksums.get(entry.getKey());
+                    blockProvider.removeFile(entry.getKey(), entry.getValue(), checksum);
+                    if (checksum != null) {
+                        removed.add(checksum);
+                    }
+                }
+                // Um só anúncio com os conteúdos que deixaram de estar disponíveis neste nó
+                removed.removeIf(checksum -> blockProvider.getFileIndex(checksum) != null);
+                if (!removed.isEmpty()) {
+                    announceChanges(Collections.emptyMap(), new ArrayList<>(removed));
+                }
+            }
+
+            @Override
+            public void filesReloaded() {
+                createBlockRequests();
+                for (NodeConnection connection : activeConnections.getLivePeers()) {
+                    connectExecutor.execute(() -> {
+                        PeerClient client = peerClients.peek(connection);
+                        if (client != null && !client.isClosed()) {
+                            announceAllFiles(client);
+                        }
+                    });
+                }
+            }
+        });
         createBlockRequests();
+
+        // Verificar periodicamente se os nós continuam a responder
+        heartbeats.scheduleWithFixedDelay(this::sendHeartbeats, HEARTBEAT_CHECK_MS, HEARTBEAT_CHECK_MS,
+                TimeUnit.MILLISECONDS);
+        // Descobrir mais nós através dos nós ligados, para manter TARGET_PEERS ligações
+        heartbeats.scheduleWithFixedDelay(this::exchangePeers, HEARTBEAT_CHECK_MS, PEX_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
     }
 
-    // Método para criar mensagens de pedido de blocos de ficheiros
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Método para registar os blocos dos ficheiros partilhados (os dados só são lidos do disco quando pedidos)
+    // O índice novo substitui o anterior de uma só vez, por isso os pedidos nunca veem um índice incompleto
     public void createBlockRequests() {
         List<File> sharedFiles = sharedFilesManager.getSharedFiles();
-        blockRequestMessages.clear();
+        List<FileBlockIndex> fileIndexes = new ArrayList<>(sharedFiles.size());
         for (File file : sharedFiles) {
-            long fileSize = file.length();
-            String fileName = file.getName();
-            int totalBlocks = (int) Math.ceil((double) fileSize / BLOCK_SIZE);
+            String fileName = sharedFilesManager.getRelativePath(file);
             String fileChecksum = sharedFilesManager.getFileChecksum(fileName);
-            for (int blockIndex = 0; blockIndex < totalBlocks; blockIndex++) {
-                int currentBlockSize = (int) Math.min(BLOCK_SIZE, fileSize - (blockIndex * BLOCK_SIZE));
-                // Separar os dados do bloco do ficheiro
-                try (FileInputStream fis = new FileInputStream(file)) {
-                    fis.skip(blockIndex * BLOCK_SIZE);
-                    byte[] blockData = new byte[currentBlockSize];
-                    fis.read(blockData);
-                    FileBlockRequestMessage blockRequest = new FileBlockRequestMessage(fileName, blockIndex,
-                            currentBlockSize, blockData, fileChecksum, new NodeConnection(ipAddress, port));
-                    blockRequestMessages.add(blockRequest);
-                } catch (IOException e) {
-                    System.out.println("Erro ao criar pedido de bloco: " + e.getMessage());
-                }
+            if (fileChecksum != null) {
+                fileIndexes.add(new FileBlockIndex(file, fileName, fileChecksum, blockSize));
             }
         }
+        blockProvider.replaceAll(fileIndexes);
     }
 
-    // Método para iniciar a conexão com outro nó
-    public void connectToNode(String nodeIp, int nodePort) {
-        try (Socket socket = new Socket(nodeIp, nodePort);
-                ObjectOutputStream objectOut = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream objectIn = new ObjectInputStream(socket.getInputStream())) {
+    // Método para iniciar a conexão com outro nó; devolve true se o nó respondeu
+    public boolean connectToNode(String nodeIp, int nodePort) {
+        NodeConnection newConnection = new NodeConnection(nodeIp, nodePort);
+        try {
+            PeerClient client = peerClients.get(newConnection);
 
-            // Enviar pedido de conexão
+            // Enviar pedido de conexão e ler a resposta
             HelloMessage helloMessage = new HelloMessage(ipAddress, port);
-            objectOut.writeObject(helloMessage);
-
-            // Ler a resposta
-            HelloMessage response = (HelloMessage) objectIn.readObject();
+            Object response = client.request(helloMessage);
             System.out.println("Resposta do nó " + nodeIp + ":" + nodePort + ": " + response);
 
-            if (!response.getType().equals("HELLO")) {
+            if (!(response instanceof HelloMessage)) {
                 System.out.println("Erro ao conectar ao nó: resposta inesperada.");
-                return;
+                return false;
             }
 
-            System.out.println(
-                    "Conectado ao nó: " + nodeIp + ":" + nodePort + " a usar a porta local " + socket.getLocalPort());
+            System.out.println("Conectado ao nó: " + nodeIp + ":" + nodePort);
 
-            // Adicionar o nó à lista de conexões ativas
-            NodeConnection newConnection = new NodeConnection(nodeIp, nodePort);
-            activeConnections.add(newConnection);
+            // Adicionar o nó à lista de conexões ativas (se ainda não estiver); a ligação foi aberta antes do registo,
+            // por isso o anúncio dos ficheiros partilhados é enviado agora
+            if (!newConnection.equals(new NodeConnection(ipAddress, port)) && activeConnections.add(newConnection)) {
+                announceAllFiles(client);
+            }
             System.out.println("Conexões ativas: " + activeConnections);
-
-            // Aqui você poderia enviar um pedido ou iniciar o processo de transferência
-        } catch (IOException | ClassNotFoundException e) {
+            return true;
+        } catch (IOException e) {
             System.out.println("Erro ao conectar ao nó: " + e.getMessage());
+            return false;
         }
     }
 
-    public List<FileBlockRequestMessage> getBlockRequestMessages() {
-        return blockRequestMessages;
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public FileBlockProvider getBlockProvider() {
+        return blockProvider;
     }
 
     public String getIpAddress() {
@@ -92,243 +202,793 @@ public class DownloadTaskManager {
         return port;
     }
 
-    // Método para adicionar uma conexão ativa
+    // Método para adicionar uma conexão ativa (ignorada se o nó já estiver registado ou for este nó)
     public void addActiveConnection(NodeConnection nodeConnection) {
-        activeConnections.add(nodeConnection);
+        if (!nodeConnection.equals(new NodeConnection(ipAddress, port)) && activeConnections.add(nodeConnection)) {
+            // Abrir já a ligação ao nó novo, que começa com o anúncio dos ficheiros partilhados
+            connectExecutor.execute(() -> {
+                try {
+                    peerClients.get(nodeConnection);
+                } catch (IOException e) {
+                    System.out.println("Erro ao ligar ao nó " + nodeConnection + ": " + e.getMessage());
+                }
+            });
+        }
     }
 
-    // Método para obter as conexões ativas
+    // Método para obter as conexões ativas (lista imutável, que pode ser percorrida sem locks)
     public List<NodeConnection> getActiveConnections() {
-        return activeConnections;
+        return activeConnections.getPeers();
+    }
+
+    // Método para enviar um HELLO aos nós cujo heartbeat está na hora (os nós que falharam são testados com
+    // intervalos cada vez maiores, e removidos se continuarem sem responder)
+    private void sendHeartbeats() {
+        List<NodeConnection> due = activeConnections.takePeersDue(System.currentTimeMillis());
+        Map<NodeConnection, CompletableFuture<Object>> responses = sendToNodes(due, new HelloMessage(ipAddress, port),
+                HEARTBEAT_TIMEOUT_MS);
+        for (Map.Entry<NodeConnection, CompletableFuture<Object>> entry : responses.entrySet()) {
+            NodeConnection connection = entry.getKey();
+            entry.getValue().whenComplete((response, error) -> {
+                if (error != null && !isRecentlyActive(connection) && !hasBlockRequestsInFlight(connection)) {
+                    // A ligação pode estar presa num nó que deixou de responder: é reaberta no próximo pedido
+                    // (com blocos pendentes, o prazo de cada bloco decide se o nó deixou de responder)
+                    peerClients.close(connection);
+                }
+            });
+        }
+    }
+
+    // Método para anunciar a um nó todos os ficheiros partilhados (o primeiro anúncio substitui os anteriores)
+    private void announceAllFiles(PeerClient client) {
+        if (!activeConnections.contains(client.getNode())) {
+            return; // Nó distante ou ainda não registado
+        }
+        NodeConnection self = new NodeConnection(ipAddress, port);
+        List<Map.Entry<String, Integer>> files = new ArrayList<>(blockProvider.getBlockSizesByChecksum().entrySet());
+        try {
+            int start = 0;
+            do {
+                Map<String, Integer> added = new LinkedHashMap<>();
+                for (Map.Entry<String, Integer> entry : files.subList(start,
+                        Math.min(files.size(), start + MAX_ANNOUNCED_FILES))) {
+                    added.put(entry.getKey(), entry.getValue());
+                }
+                client.post(new AnnounceMessage(self, start == 0, added, Collections.emptyList()));
+                start += MAX_ANNOUNCED_FILES;
+            } while (start < files.size());
+        } catch (IOException e) {
+            System.out.println("Erro ao anunciar ficheiros ao nó " + client.getNode() + ": " + e.getMessage());
+        }
     }
 
-    // Método para pesquisar ficheiros em nós conectados
-    public List<String> searchFilesInConnectedNodes(String keyword, CountDownLatch latch) {
-        List<String> results = Collections.synchronizedList(new ArrayList<>());
-        List<Thread> threads = new ArrayList<>();
+    // Método para anunciar aos nós ligados os ficheiros que passaram a ser ou deixaram de ser partilhados
+    private void announceChanges(Map<String, Integer> added, List<String> removed) {
+        AnnounceMessage announcement = new AnnounceMessage(new NodeConnection(ipAddress, port), false, added,
+                removed);
+        for (NodeConnection connection : activeConnections.getLivePeers()) {
+            connectExecutor.execute(() -> {
+                try {
+                    peerClients.get(connection).post(announcement);
+                } catch (IOException e) {
+                    System.out.println("Erro ao anunciar ficheiros ao nó " + connection + ": " + e.getMessage());
+                }
+            });
+        }
+    }
 
-        for (NodeConnection connection : activeConnections) {
-            Thread thread = new Thread() {
-                public void run() {
-                    try (Socket socket = new Socket(connection.getIpAddress(), connection.getPort());
-                            ObjectOutputStream objectOut = new ObjectOutputStream(socket.getOutputStream());
-                            ObjectInputStream objectIn = new ObjectInputStream(socket.getInputStream())) {
+    // Método para registar um anúncio de ficheiros recebido de outro nó
+    public void handleAnnouncement(AnnounceMessage announcement) {
+        if (!announcement.getNode().equals(new NodeConnection(ipAddress, port))) {
+            fileAvailability.apply(announcement);
+        }
+    }
 
-                        // Enviar pedido de busca
-                        SearchMessage searchMessage = new SearchMessage(keyword);
-                        objectOut.writeObject(searchMessage);
+    // Método para obter os nós a anunciar numa troca de nós (os nós ligados que estão a responder)
+    public List<NodeConnection> getPeersToShare() {
+        List<NodeConnection> peers = activeConnections.getLivePeers();
+        return new ArrayList<>(peers.subList(0, Math.min(peers.size(), MAX_PEX_PEERS)));
+    }
 
-                        // Ler respostas
-                        SearchResultsMessage response;
-                        try {
-                            response = (SearchResultsMessage) objectIn.readObject();
-                            if (response != null && response.getType().equals("SEARCH_RESULTS")) {
-                                results.addAll(response.getResults());
-                                System.out.println("Resposta do nó " + connection.getIpAddress() + ":"
-                                        + connection.getPort()
-                                        + ": " + response.getMessage());
+    // Método para registar nós anunciados por outro nó, como ligações possíveis
+    public void addCandidatePeers(Collection<NodeConnection> peers) {
+        NodeConnection self = new NodeConnection(ipAddress, port);
+        for (NodeConnection peer : peers) {
+            if (candidatePeers.size() >= MAX_CANDIDATE_PEERS) {
+                return;
+            }
+            if (!peer.equals(self) && !activeConnections.contains(peer)) {
+                candidatePeers.add(peer);
+            }
+        }
+    }
+
+    // Método para pedir nós a alguns nós ligados e, se houver menos de TARGET_PEERS ligações saudáveis, ligar a
+    // nós novos; corre periodicamente e não bloqueia a thread dos heartbeats
+    private void exchangePeers() {
+        if (!exchangingPeers.compareAndSet(false, true)) {
+            return; // A ronda anterior ainda não terminou
+        }
+        List<NodeConnection> livePeers = new ArrayList<>(activeConnections.getLivePeers());
+        Collections.shuffle(livePeers);
+        List<NodeConnection> asked = livePeers.subList(0, Math.min(livePeers.size(), PEX_FANOUT));
+        Map<NodeConnection, CompletableFuture<Object>> responses = sendToNodes(asked,
+                new PeerExchangeMessage(getPeersToShare()), PEX_TIMEOUT_MS);
+        for (CompletableFuture<Object> response : responses.values()) {
+            response.thenAccept(result -> {
+                if (result instanceof PeerExchangeMessage) {
+                    addCandidatePeers(((PeerExchangeMessage) result).getPeers());
+                }
+            });
+        }
+        CompletableFuture.allOf(responses.values().toArray(new CompletableFuture<?>[0])).whenComplete((done, error) -> {
+            try {
+                connectToCandidates();
+            } finally {
+                exchangingPeers.set(false);
+            }
+        });
+    }
+
+    // Método para ligar a nós conhecidos até ter TARGET_PEERS ligações saudáveis
+    // Cada nó é tentado uma vez; se voltar a ser anunciado por outro nó, pode ser tentado de novo
+    private void connectToCandidates() {
+        int missing = TARGET_PEERS - activeConnections.getLivePeers().size();
+        Iterator<NodeConnection> iterator = candidatePeers.iterator();
+        while (missing > 0 && iterator.hasNext()) {
+            NodeConnection candidate = iterator.next();
+            iterator.remove();
+            if (activeConnections.contains(candidate)) {
+                continue;
+            }
+            missing--;
+            connectExecutor.execute(() -> {
+                if (!connectToNode(candidate.getIpAddress(), candidate.getPort())) {
+                    peerClients.close(candidate);
+                }
+            });
+        }
+    }
+
+    // Método para registar o resultado de um pedido a um nó no seu estado
+    private void recordPeerResult(NodeConnection connection, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof CancellationException) {
+            return;
+        }
+        if (cause == null || (cause instanceof TimeoutException
+                && (isRecentlyActive(connection) || hasBlockRequestsInFlight(connection)))) {
+            // Uma resposta atrasada atrás de blocos de um download não conta como falha
+            activeConnections.markAlive(connection);
+        } else if (activeConnections.markFailed(connection)) {
+            peerClients.close(connection);
+            fileAvailability.removeNode(connection);
+            System.out.println("Nó " + connection + " removido: não responde.");
+        }
+    }
+
+    // Um nó que enviou dados há pouco tempo está ativo, mesmo que uma resposta esteja atrasada
+    private boolean isRecentlyActive(NodeConnection connection) {
+        PeerClient client = peerClients.peek(connection);
+        return client != null && !client.isClosed()
+                && System.currentTimeMillis() - client.getLastReceivedAt() < HEARTBEAT_TIMEOUT_MS;
+    }
+
+    private boolean hasBlockRequestsInFlight(NodeConnection connection) {
+        AtomicInteger inFlight = blockRequestsInFlight.get(connection);
+        return inFlight != null && inFlight.get() > 0;
+    }
+
+    private Map<NodeConnection, CompletableFuture<Object>> sendToNodes(List<NodeConnection> nodes, Object message,
+            long timeoutMs) {
+        return sendToNodes(nodes, message, timeoutMs, null);
+    }
+
+    // Método para enviar o mesmo pedido a vários nós, sem uma thread por nó
+    // Cada resposta tem o prazo dado; se o CompletableFuture for cancelado, o pedido ao nó também é cancelado
+    // Se onPart não for null, a resposta pode chegar em várias partes e cada parte é entregue a onPart
+    private Map<NodeConnection, CompletableFuture<Object>> sendToNodes(Collection<NodeConnection> nodes,
+            Object message, long timeoutMs, BiConsumer<NodeConnection, Object> onPart) {
+        Map<NodeConnection, CompletableFuture<Object>> responses = new LinkedHashMap<>();
+        for (NodeConnection connection : nodes) {
+            CompletableFuture<Object> response = new CompletableFuture<>();
+            response.orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+            connectExecutor.execute(() -> {
+                if (response.isDone()) {
+                    return; // Prazo esgotado ou cancelado antes de haver ligação
+                }
+                try {
+                    PeerClient client = peerClients.get(connection);
+                    CompletableFuture<Object> sent = onPart == null ? client.send(message, timeoutMs)
+                            : client.stream(message, part -> onPart.accept(connection, part), timeoutMs);
+                    sent.whenComplete((result, error) -> {
+                        if (error != null) {
+                            response.completeExceptionally(error);
+                        } else {
+                            response.complete(result);
+                        }
+                    });
+                    response.whenComplete((result, error) -> sent.cancel(false));
+                } catch (IOException e) {
+                    response.completeExceptionally(e);
+                }
+            });
+            response.whenComplete((result, error) -> recordPeerResult(connection, error));
+            responses.put(connection, response);
+        }
+        return responses;
+    }
+
+    // Método para esperar pelas respostas até ao prazo; as que não chegarem a tempo são canceladas
+    private static void awaitResponses(Collection<CompletableFuture<Object>> responses, long timeoutMs) {
+        try {
+            CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).get(timeoutMs,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // As falhas de cada nó são tratadas individualmente
+        } finally {
+            for (CompletableFuture<Object> response : responses) {
+                response.cancel(false);
+            }
+        }
+    }
+
+    // Método para descrever o erro de um pedido a um nó
+    private static String describeError(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof TimeoutException) {
+            return "sem resposta dentro do prazo";
+        }
+        if (cause instanceof CancellationException) {
+            return "pedido cancelado";
+        }
+        return cause.getMessage();
+    }
+
+    // Método para pesquisar ficheiros na rede e esperar pelos resultados (no máximo até ao prazo da pesquisa)
+    public List<SearchResult> searchFilesInConnectedNodes(String keyword) {
+        return searchFiles(keyword, null).join();
+    }
+
+    // Método para pesquisar ficheiros na rede sem bloquear: a pesquisa vai aos nós conectados que estão a responder
+    // e estes reencaminham-na até SEARCH_TTL saltos; os resultados de cada nó indicam que nó tem o ficheiro
+    // onResults (se não for null) recebe os resultados novos à medida que cada nó responde, numa thread de rede;
+    // o CompletableFuture termina com todos os resultados quando todos os nós responderem ou o prazo acabar
+    public CompletableFuture<List<SearchResult>> searchFiles(String keyword, Consumer<List<SearchResult>> onResults) {
+        List<SearchResult> cached = recentSearches.getCachedResults(keyword, SEARCH_TTL);
+        if (cached != null) {
+            if (onResults != null) {
+                onResults.accept(new ArrayList<>(cached));
+            }
+            return CompletableFuture.completedFuture(new ArrayList<>(cached));
+        }
+
+        // O mesmo ficheiro no mesmo nó pode chegar por dois caminhos (um deles a partir da cache de outro nó)
+        Set<SearchResult> results = new LinkedHashSet<>();
+        AtomicBoolean finished = new AtomicBoolean(false);
+        long queryId = newQueryId();
+        recentSearches.markSeen(queryId); // Para ignorar a pesquisa quando voltar a este nó
+        Map<NodeConnection, CompletableFuture<Object>> responses = sendToNodes(activeConnections.getLivePeers(),
+                new SearchMessage(keyword, queryId, SEARCH_TTL), SEARCH_TIMEOUT_MS, (connection, part) -> {
+                    if (!(part instanceof SearchResultsMessage)) {
+                        return;
+                    }
+                    List<SearchResult> newResults = new ArrayList<>();
+                    synchronized (results) {
+                        if (finished.get()) {
+                            return; // Chegou depois do prazo
+                        }
+                        for (SearchResult result : ((SearchResultsMessage) part).getResults()) {
+                            if (results.add(result)) {
+                                newResults.add(result);
                             }
-                        } catch (ClassNotFoundException e) {
-                            System.out.println("Erro ao ler objeto: " + e.getMessage());
                         }
-                    } catch (IOException e) {
-                        System.out.println("Erro ao buscar no nó " + connection.getIpAddress() + ":"
-                                + connection.getPort() + " - " + e.getMessage());
-                    } finally {
-                        latch.countDown();
+                        if (onResults != null && !newResults.isEmpty()) {
+                            onResults.accept(newResults);
+                        }
                     }
+                });
+        for (Map.Entry<NodeConnection, CompletableFuture<Object>> entry : responses.entrySet()) {
+            NodeConnection connection = entry.getKey();
+            entry.getValue().whenComplete((response, error) -> {
+                if (error != null && !(error instanceof CancellationException)) {
+                    System.out.println("Erro ao buscar no nó " + connection.getIpAddress() + ":"
+                            + connection.getPort() + " - " + describeError(error));
                 }
-            };
-            threads.add(thread);
-            thread.start();
+            });
+        }
+
+        // Cada resposta tem o prazo da pesquisa, por isso a pesquisa termina no máximo nesse prazo
+        return CompletableFuture.allOf(responses.values().toArray(new CompletableFuture<?>[0]))
+                .handle((done, error) -> {
+                    List<SearchResult> found;
+                    synchronized (results) {
+                        finished.set(true);
+                        found = new ArrayList<>(results);
+                    }
+                    System.out.println("Pesquisa \"" + keyword + "\": " + found.size() + " resultados.");
+                    recentSearches.cacheResults(keyword, SEARCH_TTL, found);
+                    rememberHolders(found);
+                    return found;
+                });
+    }
+
+    // Método para verificar se uma pesquisa recebida de outro nó ainda não foi tratada por este nó
+    public boolean acceptSearch(SearchMessage search) {
+        return search.getQueryId() == 0 || recentSearches.markSeen(search.getQueryId());
+    }
+
+    // Método para responder a uma pesquisa recebida de outro nó: os resultados locais seguem logo e, se a pesquisa
+    // ainda puder dar mais saltos, é reencaminhada para os nós ligados e os resultados destes seguem à medida que
+    // chegam. A última parte enviada a reply é marcada como final.
+    public void forwardSearch(SearchMessage search, List<SearchResult> localResults,
+            Consumer<SearchResultsMessage> reply) {
+        // Um nó remoto pode enviar um ttl maior do que o deste nó; nunca reencaminhar para além de SEARCH_TTL saltos
+        int nextTtl = Math.min(search.getTtl(), SEARCH_TTL) - 1;
+        List<NodeConnection> peers = activeConnections.getLivePeers();
+        if (nextTtl <= 0 || peers.isEmpty()) {
+            reply.accept(new SearchResultsMessage(localResults, true));
+            return;
+        }
+        List<SearchResult> cached = recentSearches.getCachedResults(search.getQuery(), nextTtl);
+        if (cached != null) {
+            List<SearchResult> results = new ArrayList<>(localResults);
+            results.addAll(cached);
+            reply.accept(new SearchResultsMessage(results, true));
+            return;
+        }
+
+        reply.accept(new SearchResultsMessage(localResults, false));
+        List<SearchResult> remoteResults = new ArrayList<>();
+        AtomicBoolean finished = new AtomicBoolean(false);
+        Map<NodeConnection, CompletableFuture<Object>> responses = sendToNodes(peers,
+                new SearchMessage(search.getQuery(), search.getQueryId(), nextTtl), nextTtl * SEARCH_HOP_TIMEOUT_MS,
+                (connection, part) -> {
+                    List<SearchResult> partResults = part instanceof SearchResultsMessage
+                            ? ((SearchResultsMessage) part).getResults() : Collections.emptyList();
+                    synchronized (remoteResults) {
+                        if (partResults.isEmpty() || finished.get()) {
+                            return;
+                        }
+                        remoteResults.addAll(partResults);
+                        reply.accept(new SearchResultsMessage(partResults, false));
+                    }
+                });
+        CompletableFuture.allOf(responses.values().toArray(new CompletableFuture<?>[0])).whenComplete((done, error) -> {
+            synchronized (remoteResults) {
+                finished.set(true);
+                recentSearches.cacheResults(search.getQuery(), nextTtl, remoteResults);
+                reply.accept(new SearchResultsMessage(new ArrayList<>(), true));
+            }
+        });
+    }
+
+    private static long newQueryId() {
+        long queryId;
+        do {
+            queryId = ThreadLocalRandom.current().nextLong();
+        } while (queryId == 0); // 0 identifica as pesquisas sem reencaminhamento
+        return queryId;
+    }
+
+    // Método para registar os nós que têm cada conteúdo encontrado
+    private void rememberHolders(List<SearchResult> results) {
+        if (knownHolders.size() > MAX_KNOWN_HOLDERS) {
+            knownHolders.clear();
         }
+        for (SearchResult result : results) {
+            knownHolders.computeIfAbsent(result.getChecksum(), checksum -> ConcurrentHashMap.newKeySet())
+                    .add(result.getHolder());
+        }
+    }
 
-        return results;
+    // Método para descarregar um ficheiro de conteúdo conhecido (por exemplo, escolhido nos resultados de uma
+    // pesquisa): os nós que anunciaram o checksum entram logo no download e só um deles é consultado para obter a
+    // descrição do ficheiro. Sem nós conhecidos, os nós conectados são consultados pelo checksum.
+    public Map<String, Integer> requestDownloadToNodes(String fileName, String checksum) {
+        if (sharedFilesManager.getFileByName(fileName) != null) {
+            System.out.println("O ficheiro já existe localmente.");
+            return null;
+        }
+        Map<NodeConnection, Integer> holders = fileAvailability.getHolders(checksum);
+        holders.keySet().retainAll(activeConnections.getLivePeers());
+
+        // Consultar todos os nós ao mesmo tempo e usar a primeira descrição válida; os restantes pedidos são
+        // cancelados assim que ela chega
+        DownloadResultMessage fileInfo = null;
+        if (!holders.isEmpty()) {
+            Map<NodeConnection, CompletableFuture<Object>> pending = sendToNodes(holders.keySet(),
+                    new DownloadMessage(fileName, checksum), DOWNLOAD_PROBE_TIMEOUT_MS, null);
+            CompletableFuture<DownloadResultMessage> firstValid = new CompletableFuture<>();
+            List<CompletableFuture<Void>> checked = new ArrayList<>();
+            for (CompletableFuture<Object> response : pending.values()) {
+                checked.add(response.thenAccept(result -> {
+                    // Um anúncio desatualizado ou um nó que não responde não impedem as outras respostas
+                    if (result instanceof DownloadResultMessage && ((DownloadResultMessage) result).hasFile()
+                            && ((DownloadResultMessage) result).getChecksum().equals(checksum)) {
+                        firstValid.complete((DownloadResultMessage) result);
+                    }
+                }));
+            }
+            CompletableFuture.allOf(checked.toArray(new CompletableFuture<?>[0]))
+                    .whenComplete((done, error) -> firstValid.complete(null));
+            try {
+                fileInfo = firstValid.get(DOWNLOAD_PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                // Nenhum nó respondeu a tempo
+            } finally {
+                for (CompletableFuture<Object> response : pending.values()) {
+                    response.cancel(false);
+                }
+            }
+        }
+        if (fileInfo != null) {
+            List<NodeConnection> nodesWithFile = new ArrayList<>();
+            List<DownloadResultMessage> responses = new ArrayList<>();
+            for (Map.Entry<NodeConnection, Integer> entry : holders.entrySet()) {
+                // Os blocos só coincidem entre nós que usam o mesmo tamanho de bloco
+                if (entry.getValue() == fileInfo.getBlockSize()) {
+                    nodesWithFile.add(entry.getKey());
+                    responses.add(fileInfo);
+                }
+            }
+            System.out.println("Ficheiro " + fileName + " anunciado por " + nodesWithFile.size() + " nós.");
+            Map<String, Integer> blocksSent = requestFileBlocksThreadPool(fileName, nodesWithFile, responses);
+            if (blocksSent == null) {
+                throw new RuntimeException("Erro ao solicitar blocos de ficheiros.");
+            }
+            return blocksSent;
+        }
+        // Nenhum nó anunciado respondeu: consultar os nós conectados, mas só pelo conteúdo escolhido (outros nós podem
+        // ter um ficheiro diferente com o mesmo nome)
+        return requestDownloadFromPeers(fileName, checksum);
     }
 
     // Método para solicitar download de ficheiros a nós conectados
     public Map<String, Integer> requestDownloadToNodes(String fileName) {
+        return requestDownloadFromPeers(fileName, null);
+    }
+
+    // Método para consultar os nós conectados e descarregar dos que têm o ficheiro; se checksum não for null, só
+    // os nós com esse conteúdo entram no download
+    private Map<String, Integer> requestDownloadFromPeers(String fileName, String checksum) {
         // Verificar se o ficheiro já existe localmente
         File localFile = sharedFilesManager.getFileByName(fileName);
         if (localFile != null) {
             System.out.println("O ficheiro já existe localmente.");
             return null;
         }
-        List<NodeConnection> nodesWithFile = new ArrayList<>();
-        List<Thread> threads = new ArrayList<>();
-        List<String> responses = new ArrayList<>();
-        for (NodeConnection connection : activeConnections) {
-            Thread thread = new Thread() {
-                public void run() {
-                    try (Socket socket = new Socket(connection.getIpAddress(), connection.getPort());
-                            ObjectOutputStream objectOut = new ObjectOutputStream(socket.getOutputStream());
-                            ObjectInputStream objectIn = new ObjectInputStream(socket.getInputStream())) {
-
-                        // Enviar pedido de download
-                        DownloadMessage downloadMessage = new DownloadMessage(fileName);
-                        objectOut.writeObject(downloadMessage);
-
-                        // Ler respostas
-                        DownloadResultMessage response;
-                        try {
-                            response = (DownloadResultMessage) objectIn.readObject();
-                            if (response != null && response.getType().equals("DOWNLOAD_RESULT")) {
-                                if (response.hasFile()) {
-                                    String responseString = response.getChecksum() + ":" + response.getFileBlocks();
-                                    responses.add(responseString);
-                                    synchronized (nodesWithFile) {
-                                        nodesWithFile.add(connection);
-                                    }
-                                }
-                            }
-                            System.out.println("Resposta do nó " + connection.getIpAddress() + ":"
-                                    + connection.getPort() + ": " + response);
-                        } catch (ClassNotFoundException e) {
-                            System.out.println("Erro ao ler objeto: " + e.getMessage());
-                        }
-                    } catch (IOException e) {
-                        System.out.println("Erro ao solicitar download ao nó " + connection.getIpAddress() + ":"
-                                + connection.getPort() + " - " + e.getMessage());
-                    }
+
+        // Enviar pedido de download a todos os nós e, se o conteúdo for conhecido, aos nós mais distantes que a
+        // pesquisa encontrou com esse checksum; esperar pelas respostas até ao prazo
+        Set<NodeConnection> nodes = new LinkedHashSet<>(activeConnections.getLivePeers());
+        Set<NodeConnection> distantNodes = checksum != null
+                ? new HashSet<>(knownHolders.getOrDefault(checksum, Collections.emptySet())) : new HashSet<>();
+        distantNodes.remove(new NodeConnection(ipAddress, port));
+        distantNodes.removeIf(activeConnections::contains);
+        nodes.addAll(distantNodes);
+        try {
+            return requestDownloadToNodes(fileName, checksum, nodes);
+        } finally {
+            // Os nós distantes não recebem heartbeats: as ligações abertas para este download são fechadas
+            for (NodeConnection node : distantNodes) {
+                if (!activeConnections.contains(node)) {
+                    peerClients.close(node);
                 }
-            };
-            threads.add(thread);
-            thread.start();
+            }
         }
+    }
 
-        // Esperar que todas as threads terminem
-        for (Thread thread : threads) {
-            try {
-                thread.join();
-            } catch (InterruptedException e) {
-                System.out.println("Erro ao esperar pela thread: " + e.getMessage());
+    private Map<String, Integer> requestDownloadToNodes(String fileName, String checksum,
+            Set<NodeConnection> nodes) {
+        DownloadMessage request = checksum != null ? new DownloadMessage(fileName, checksum)
+                : new DownloadMessage(fileName);
+        Map<NodeConnection, CompletableFuture<Object>> pending = sendToNodes(nodes, request,
+                DOWNLOAD_PROBE_TIMEOUT_MS, null);
+        awaitResponses(pending.values(), DOWNLOAD_PROBE_TIMEOUT_MS);
+
+        List<NodeConnection> nodesWithFile = new ArrayList<>();
+        List<DownloadResultMessage> responses = new ArrayList<>();
+        for (Map.Entry<NodeConnection, CompletableFuture<Object>> entry : pending.entrySet()) {
+            NodeConnection connection = entry.getKey();
+            CompletableFuture<Object> future = entry.getValue();
+            if (future.isCompletedExceptionally()) {
+                Throwable error = future.handle((result, e) -> e).join();
+                System.out.println("Erro ao solicitar download ao nó " + connection.getIpAddress() + ":"
+                        + connection.getPort() + " - " + describeError(error));
+                continue;
+            }
+            Object response = future.join();
+            if (response instanceof DownloadResultMessage && ((DownloadResultMessage) response).hasFile()
+                    && (checksum == null || checksum.equals(((DownloadResultMessage) response).getChecksum()))) {
+                responses.add((DownloadResultMessage) response);
+                nodesWithFile.add(connection);
             }
+            System.out.println("Resposta do nó " + connection.getIpAddress() + ":"
+                    + connection.getPort() + ": " + response);
         }
-        List<FileBlockRequestMessage> fileBlocks = requestFileBlocksThreadPool(fileName, nodesWithFile, responses);
-        if (fileBlocks == null) {
-            throw new RuntimeException("Erro ao solicitar blocos de ficheiros.");
+        if (responses.isEmpty()) {
+            System.out.println("Nenhum nó tem o ficheiro " + fileName + ".");
+            return new HashMap<>();
         }
 
-        // Cria um dicionário, como key o originNode e como value um Integer que representa o total de blocos enviados
-        Map<String, Integer> blocksSent = new HashMap<>();
-        for (FileBlockRequestMessage block : fileBlocks) {
-            NodeConnection originNode = block.getOriginNode();
-            if (blocksSent.containsKey(originNode.toString())) {
-                blocksSent.put(originNode.toString(), blocksSent.get(originNode.toString()) + 1);
-            } else {
-                blocksSent.put(originNode.toString(), 1);
-            }
+        // Dicionário com o originNode como key e o total de blocos enviados como value
+        Map<String, Integer> blocksSent = requestFileBlocksThreadPool(fileName, nodesWithFile, responses);
+        if (blocksSent == null) {
+            throw new RuntimeException("Erro ao solicitar blocos de ficheiros.");
         }
-        rebuildFile(fileBlocks);
         return blocksSent;
     }
 
     // Método para solicitar blocos de ficheiros a nós conectados
-    public List<FileBlockRequestMessage> requestFileBlocksThreadPool(String fileName,
+    // Devolve, por nó, o número de blocos enviados
+    public Map<String, Integer> requestFileBlocksThreadPool(String fileName,
             List<NodeConnection> nodesWithFile,
-            List<String> responses) {
-        blockRequests.clear();
-        List<Integer> blocksToRequest = new ArrayList<>();
-        String fileChecksum = responses.get(0).split(":")[0];
-        // Eliminar duplicados em responses
-        responses = new ArrayList<>(new HashSet<>(responses));
-
-        // Se ainda houver respostas diferentes dá erro
-        if (responses.size() > 1) {
-            System.out.println("Erro: múltiplas respostas diferentes para o mesmo ficheiro.");
-            return null;
+            List<DownloadResultMessage> responses) {
+        DownloadResultMessage fileInfo = responses.get(0);
+        String fileChecksum = fileInfo.getChecksum();
+
+        // Todos os nós têm de descrever o mesmo ficheiro, senão dá erro
+        for (DownloadResultMessage response : responses) {
+            if (!response.getChecksum().equals(fileChecksum) || response.getFileSize() != fileInfo.getFileSize()) {
+                System.out.println("Erro: múltiplas respostas diferentes para o mesmo ficheiro.");
+                return null;
+            }
         }
-        // Numero de blocos
-        int totalBlocks = Integer.valueOf(responses.get(0).split(":")[1]);
 
-        for (int i = 0; i < totalBlocks; i++) {
-            blocksToRequest.add(i);
+        // Nós com tamanhos de bloco diferentes não podem partilhar o download: usar o tamanho mais comum
+        Map<Integer, Integer> nodesPerBlockSize = new HashMap<>();
+        for (DownloadResultMessage response : responses) {
+            nodesPerBlockSize.merge(response.getBlockSize(), 1, Integer::sum);
+        }
+        int fileBlockSize = Collections.max(nodesPerBlockSize.entrySet(), Map.Entry.comparingByValue()).getKey();
+        List<NodeConnection> compatibleNodes = new ArrayList<>();
+        for (int i = 0; i < responses.size(); i++) {
+            if (responses.get(i).getBlockSize() == fileBlockSize) {
+                compatibleNodes.add(nodesWithFile.get(i));
+                fileInfo = responses.get(i);
+            }
+        }
+        if (fileBlockSize <= 0 || fileBlockSize > FileBlockIndex.MAX_BLOCK_SIZE) {
+            System.out.println("Erro: tamanho de bloco inválido: " + fileBlockSize);
+            return null;
+        }
+        if (compatibleNodes.size() < nodesWithFile.size()) {
+            System.out.println("Aviso: " + (nodesWithFile.size() - compatibleNodes.size())
+                    + " nós usam outro tamanho de bloco e não serão usados.");
+        }
+        nodesWithFile = compatibleNodes;
+
+        // Numero de blocos e tamanho do ficheiro; o número de blocos dimensiona o ficheiro parcial, por isso tem de
+        // corresponder ao tamanho do ficheiro
+        int totalBlocks = fileInfo.getFileBlocks();
+        long fileSize = fileInfo.getFileSize();
+        if (fileSize < 0 || totalBlocks != (fileSize + fileBlockSize - 1) / fileBlockSize) {
+            System.out.println("Erro: número de blocos inválido: " + totalBlocks + " blocos de " + fileBlockSize
+                    + " bytes para " + fileSize + " bytes.");
+            return null;
         }
 
-        // Cria uma BlockingQueue para coordenar as tarefas
-        BlockingQueue<Integer> blockQueue = new LinkedBlockingQueue<>(blocksToRequest);
-
-        // Cria um ThreadPool com 5 threads
-        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(5);
+        // Lista de hashes dos blocos, para verificar cada bloco assim que chega
+        byte[] blockHashes = null;
+        for (DownloadResultMessage response : responses) {
+            if (response.getBlockSize() != fileBlockSize || !response.hasBlockHashes()) {
+                continue;
+            }
+            if (response.getBlockHashes().length != (long) totalBlocks * FileHasher.HASH_BYTES) {
+                System.out.println("Aviso: lista de hashes dos blocos com tamanho inválido ignorada.");
+                continue;
+            }
+            blockHashes = response.getBlockHashes();
+            break;
+        }
+        if (blockHashes == null) {
+            System.out.println("Aviso: nenhum nó enviou os hashes dos blocos; só o ficheiro completo será verificado.");
+        }
 
-        for (NodeConnection connection : nodesWithFile) {
-            executor.submit(() -> {
-                while (!blockQueue.isEmpty()) {
-                    try {
-                        Integer blockIndex = blockQueue.poll(1, TimeUnit.SECONDS);
-                        if (blockIndex == null) {
-                            break;
-                        }
-                        try (Socket socket = new Socket(connection.getIpAddress(), connection.getPort());
-                                ObjectOutputStream objectOut = new ObjectOutputStream(socket.getOutputStream());
-                                ObjectInputStream objectIn = new ObjectInputStream(socket.getInputStream())) {
-
-                            // Enviar pedido de bloco
-                            BlockMessage blockMessage = new BlockMessage(fileChecksum, blockIndex);
-                            objectOut.writeObject(blockMessage);
-
-                            // Ler resposta
-                            try {
-                                FileBlockRequestMessage blockRequest = (FileBlockRequestMessage) objectIn.readObject();
-                                synchronized (blockRequests) {
-                                    blockRequests.add(blockRequest);
-                                }
-                            } catch (ClassNotFoundException e) {
-                                System.out.println("Erro ao ler objeto: " + e.getMessage());
-                            }
+        // Os blocos são escritos diretamente no ficheiro parcial à medida que chegam;
+        // se existir um download interrompido do mesmo ficheiro, só os blocos em falta são pedidos
+        PartFile partFile;
+        try {
+            partFile = new PartFile(sharedFilesManager.getSharedFolderPath(), fileName, fileChecksum, fileSize,
+                    fileBlockSize, totalBlocks);
+        } catch (IOException e) {
+            System.out.println("Erro ao criar ficheiro parcial: " + e.getMessage());
+            return null;
+        }
 
-                        } catch (IOException e) {
-                            System.out.println("Erro ao solicitar blocos ao nó " + connection.getIpAddress() + ":"
-                                    + connection.getPort() + " - " + e.getMessage());
-                        }
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        System.out.println("Erro ao esperar pelo bloco: " + e.getMessage());
-                    }
+        // O BlockScheduler distribui os blocos em falta pelos nós, de acordo com a velocidade de cada um
+        Map<String, Integer> blocksSent = new ConcurrentHashMap<>();
+        BlockVerifier verifier = new BlockVerifier(blockHashes, nodesWithFile.size());
+        BlockScheduler scheduler = new BlockScheduler(partFile, verifier, fileBlockSize);
+
+        // Uma tarefa por nó, para que todos os nós com o ficheiro sejam usados; as threads são partilhadas
+        // entre downloads
+        // Os nós com menos blocos corrompidos no passado são usados primeiro
+        List<NodeConnection> orderedNodes = new ArrayList<>(nodesWithFile);
+        orderedNodes.sort(Comparator.comparing(node -> peerPenalties.getOrDefault(node, 0)));
+        CountDownLatch workersDone = new CountDownLatch(orderedNodes.size());
+        List<Future<?>> workers = new ArrayList<>();
+        for (NodeConnection connection : orderedNodes) {
+            workers.add(downloadWorkers.submit(() -> {
+                try {
+                    requestBlocksFromNode(connection, fileChecksum, fileBlockSize, scheduler, partFile, blocksSent,
+                            verifier);
+                } finally {
+                    workersDone.countDown();
                 }
-            });
+            }));
         }
 
-        // Desligar o ThreadPool
-        executor.shutdown();
-
-        // Esperar que todas as threads terminem
+        // Esperar que todas as tarefas terminem, enquanto o download estiver a progredir; o progresso conta os
+        // bytes recebidos dos nós, porque um bloco grande vindo de um nó lento pode demorar mais do que o intervalo
         try {
-            executor.awaitTermination(5000, TimeUnit.MILLISECONDS);
+            long lastReceived = -1;
+            while (!workersDone.await(5000, TimeUnit.MILLISECONDS)) {
+                long received = partFile.getReceivedCount() + bytesReceivedFrom(orderedNodes);
+                if (received == lastReceived) {
+                    System.out.println("Download sem progresso, a interromper.");
+                    cancelWorkers(workers, workersDone);
+                    break;
+                }
+                lastReceived = received;
+            }
         } catch (InterruptedException e) {
-            System.out.println("Erro ao esperar pelo ThreadPool: " + e.getMessage());
+            Thread.currentThread().interrupt();
+            System.out.println("Download interrompido: " + e.getMessage());
+            cancelWorkers(workers, workersDone);
+        }
+        if (scheduler.getDuplicateRequests() > 0) {
+            System.out.println("End-game: " + scheduler.getDuplicateRequests() + " blocos pedidos a mais de um nó.");
         }
-
-        // Verificar se todos os blocos foram recebidos
-        System.out.println("Blocos:");
-
-        // Eliminar blockrequests com blockindex duplicados
-        blockRequests = new ArrayList<>(new HashSet<>(blockRequests));
 
         // Contar o número de blocos não recebidos
-        int missingBlocks = totalBlocks - blockRequests.size();
-
-        // Organizar os blocos por ordem de blockindex
-        blockRequests.sort(Comparator.comparing(FileBlockRequestMessage::getBlockIndex));
+        int missingBlocks = totalBlocks - partFile.getReceivedCount();
         if (missingBlocks > 0) {
-            System.out.println("Erro: " + missingBlocks + " blocos não foram recebidos.");
+            System.out.println("Erro: " + missingBlocks + " blocos não foram recebidos. O download será retomado "
+                    + "no próximo pedido.");
+            partFile.suspend();
+            return null;
+        }
+
+        try {
+            // Verificar o ficheiro completo antes de o colocar na pasta partilhada
+            if (!partFile.verify(fileChecksum)) {
+                System.out.println("Erro: o checksum do ficheiro recebido não corresponde ao esperado.");
+                partFile.abort();
+                return null;
+            }
+            // O ficheiro passa a ser partilhado logo, sem calcular de novo o checksum
+            sharedFilesManager.addDownloadedFile(partFile.complete().toFile(), fileChecksum);
+        } catch (IOException e) {
+            System.out.println("Erro ao concluir o ficheiro: " + e.getMessage());
+            partFile.suspend();
             return null;
         }
+        return blocksSent;
+    }
+
+    // Método para somar os bytes recebidos das ligações aos nós de um download
+    private long bytesReceivedFrom(List<NodeConnection> nodes) {
+        long total = 0;
+        for (NodeConnection node : nodes) {
+            PeerClient client = peerClients.peek(node);
+            if (client != null) {
+                total += client.getBytesReceived();
+            }
+        }
+        return total;
+    }
 
-        return blockRequests;
+    // Método para cancelar as tarefas de um download e esperar um pouco que terminem
+    private static void cancelWorkers(List<Future<?>> workers, CountDownLatch workersDone) {
+        for (Future<?> worker : workers) {
+            worker.cancel(true);
+        }
+        try {
+            workersDone.await(1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    // Método para reconstruir o ficheiro a partir dos blocos
-    private void rebuildFile(List<FileBlockRequestMessage> fileBlocks) {
-        for (FileBlockRequestMessage block : fileBlocks) {
-            String fileName = block.getFileName();
-            String filePath = sharedFilesManager.getSharedFolderPath() + File.separator + fileName;
-            try (FileOutputStream fos = new FileOutputStream(filePath, true)) {
-                fos.write(block.getData());
-            } catch (IOException e) {
-                System.out.println("Erro ao reconstruir o ficheiro: " + e.getMessage());
+    // Método que pede blocos a um nó mantendo vários pedidos pendentes na mesma ligação (pipelining)
+    private void requestBlocksFromNode(NodeConnection connection, String fileChecksum, int fileBlockSize,
+            BlockScheduler scheduler, PartFile partFile, Map<String, Integer> blocksSent, BlockVerifier verifier) {
+        PeerClient client;
+        try {
+            client = peerClients.get(connection);
+        } catch (IOException e) {
+            System.out.println("Erro ao solicitar blocos ao nó " + connection.getIpAddress() + ":"
+                    + connection.getPort() + " - " + e.getMessage());
+            verifier.nodeStopped();
+            return;
+        }
+
+        // Com blocos grandes, a janela é limitada em bytes para não ter demasiados dados pendentes (no mínimo dois
+        // blocos, para que o nó tenha sempre o próximo bloco pedido)
+        int minWindow = Math.max(2, Math.min(MIN_PIPELINE_WINDOW, INITIAL_IN_FLIGHT_BYTES / fileBlockSize));
+        int maxWindow = Math.max(minWindow, Math.min(MAX_PIPELINE_WINDOW, MAX_IN_FLIGHT_BYTES / fileBlockSize));
+        int initialWindow = Math.min(INITIAL_PIPELINE_WINDOW, INITIAL_IN_FLIGHT_BYTES / fileBlockSize);
+        PeerDownloadWindow window = new PeerDownloadWindow(initialWindow, minWindow, maxWindow);
+        scheduler.register(connection, window);
+        AtomicBoolean nodeFailed = new AtomicBoolean(false);
+        try {
+            while (!nodeFailed.get() && !scheduler.isComplete()) {
+                window.acquire();
+                Integer blockIndex = scheduler.nextBlock(connection, 100);
+                if (blockIndex == null) {
+                    // Nenhum bloco para este nó por agora: os blocos podem ainda voltar à fila se outro nó falhar
+                    window.release();
+                    continue;
+                }
+
+                // Enviar pedido de bloco sem esperar pela resposta
+                // A verificação e a escrita no disco correm nas threads dos downloads, para que a thread que lê as
+                // respostas da ligação (partilhada com heartbeats e pesquisas) só complete os pedidos
+                long sentAt = System.nanoTime();
+                AtomicInteger inFlight = blockRequestsInFlight.computeIfAbsent(connection, key -> new AtomicInteger());
+                inFlight.incrementAndGet();
+                CompletableFuture<Object> sent = client.send(new BlockMessage(fileChecksum, blockIndex),
+                        window.getRequestTimeoutMs(fileBlockSize));
+                sent.whenComplete((response, error) -> inFlight.decrementAndGet());
+                sent.whenCompleteAsync((response, error) -> {
+                    if (response instanceof FileBlockRequestMessage) {
+                        FileBlockRequestMessage block = (FileBlockRequestMessage) response;
+                        if (partFile.isBlockReceived(blockIndex)) {
+                            // Cópia de um bloco pedido em end-game que outro nó já entregou
+                            window.onBlockReceived(System.nanoTime() - sentAt, block.getData().length);
+                            return;
+                        }
+                        if (!verifier.verify(blockIndex, block.getData())) {
+                            // Bloco corrompido: volta para a fila, de preferência para outro nó
+                            int badBlocks = verifier.reportBadBlock(blockIndex, connection);
+                            scheduler.onBlockFailed(blockIndex, connection);
+                            peerPenalties.merge(connection, 1, Integer::sum);
+                            System.out.println("Bloco " + blockIndex + " corrompido recebido do nó " + connection);
+                            if (badBlocks >= MAX_BAD_BLOCKS && !nodeFailed.getAndSet(true)) {
+                                System.out.println("Nó " + connection + " excluído do download: demasiados "
+                                        + "blocos corrompidos.");
+                            }
+                            window.onFailure();
+                            return;
+                        }
+                        try {
+                            // Escrever o bloco no disco assim que chega e é verificado
+                            if (partFile.writeBlock(blockIndex, block.getData())) {
+                                blocksSent.merge(block.getOriginNode().toString(), 1, Integer::sum);
+                            }
+                            scheduler.onBlockReceived(blockIndex);
+                            window.onBlockReceived(System.nanoTime() - sentAt, block.getData().length);
+                        } catch (IOException e) {
+                            System.out.println("Erro ao escrever bloco " + blockIndex + ": " + e.getMessage());
+                            scheduler.onBlockFailed(blockIndex, connection);
+                            window.onFailure();
+                        }
+                    } else {
+                        scheduler.onBlockFailed(blockIndex, connection); // Bloco não recebido, volta para a fila
+                        if (!nodeFailed.getAndSet(true)) {
+                            System.out.println("Erro ao solicitar blocos ao nó " + connection.getIpAddress() + ":"
+                                    + connection.getPort() + " - "
+                                    + (error != null ? error.getMessage() : "bloco " + blockIndex + " indisponível"));
+                        }
+                        window.onFailure();
+                    }
+                }, downloadWorkers);
             }
+            window.awaitIdle();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Erro ao esperar pelo bloco: " + e.getMessage());
+        } finally {
+            scheduler.unregister(connection);
+            verifier.nodeStopped();
         }
+        System.out.println("Nó " + connection + ": " + window);
     }
 
     public SharedFilesManager getSharedFilesManager() {
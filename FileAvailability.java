@@ -0,0 +1,57 @@
+import java.util.*;
+
+// Classe que guarda que nós têm cada ficheiro, a partir dos anúncios recebidos dos outros nós
+// Para cada checksum guarda os nós que o anunciaram e o tamanho dos blocos que cada um usa
+public class FileAvailability {
+    private final Map<String, Map<NodeConnection, Integer>> holdersByChecksum = new HashMap<>();
+    private final Map<NodeConnection, Set<String>> checksumsByNode = new HashMap<>();
+
+    // Método para aplicar um anúncio recebido
+    public synchronized void apply(AnnounceMessage announcement) {
+        NodeConnection node = announcement.getNode();
+        if (announcement.isFull()) {
+            removeNode(node);
+        }
+        Set<String> checksums = checksumsByNode.computeIfAbsent(node, key -> new HashSet<>());
+        for (String checksum : announcement.getRemoved()) {
+            checksums.remove(checksum);
+            Map<NodeConnection, Integer> holders = holdersByChecksum.get(checksum);
+            if (holders != null) {
+                holders.remove(node);
+                if (holders.isEmpty()) {
+                    holdersByChecksum.remove(checksum);
+                }
+            }
+        }
+        for (Map.Entry<String, Integer> entry : announcement.getAdded().entrySet()) {
+            checksums.add(entry.getKey());
+            holdersByChecksum.computeIfAbsent(entry.getKey(), key -> new HashMap<>()).put(node, entry.getValue());
+        }
+        if (checksums.isEmpty()) {
+            checksumsByNode.remove(node);
+        }
+    }
+
+    // Método para esquecer tudo o que um nó anunciou (por exemplo, quando é removido por não responder)
+    public synchronized void removeNode(NodeConnection node) {
+        Set<String> checksums = checksumsByNode.remove(node);
+        if (checksums == null) {
+            return;
+        }
+        for (String checksum : checksums) {
+            Map<NodeConnection, Integer> holders = holdersByChecksum.get(checksum);
+            if (holders != null) {
+                holders.remove(node);
+                if (holders.isEmpty()) {
+                    holdersByChecksum.remove(checksum);
+                }
+            }
+        }
+    }
+
+    // Método para obter os nós que anunciaram um ficheiro, com o tamanho dos blocos de cada um (cópia)
+    public synchronized Map<NodeConnection, Integer> getHolders(String checksum) {
+        Map<NodeConnection, Integer> holders = holdersByChecksum.get(checksum);
+        return holders != null ? new LinkedHashMap<>(holders) : new LinkedHashMap<>();
+    }
+}
@@ -0,0 +1,138 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// Classe que descreve a divisão em blocos de um ficheiro partilhado
+public class FileBlockIndex {
+    public static final int MAX_BLOCK_SIZE = 4 * 1024 * 1024; // 4MB
+    private static final int TARGET_BLOCKS = 4096; // Ficheiros grandes usam blocos maiores até este número
+    private final File file;
+    private final String fileName; // Caminho relativo à pasta partilhada, que identifica o ficheiro na rede
+    private final String fileChecksum;
+    private final long fileSize;
+    private final int blockSize;
+    private final int totalBlocks;
+    // Calculados em segundo plano quando o ficheiro é registado (ou lidos do disco); null enquanto não estiverem
+    // prontos. O cálculo usa um lock próprio para não bloquear o envio de blocos, que usa o monitor do índice.
+    private volatile byte[] blockHashes;
+    private final Object hashLock = new Object();
+    private FileChannel channel; // Aberto no primeiro pedido de um bloco e partilhado pelos pedidos seguintes
+
+    public FileBlockIndex(File file, String fileName, String fileChecksum, int baseBlockSize) {
+        this.file = file;
+        this.fileName = fileName;
+        this.fileChecksum = fileChecksum;
+        this.fileSize = file.length();
+        this.blockSize = blockSizeFor(fileSize, baseBlockSize);
+        this.totalBlocks = (int) Math.ceil((double) fileSize / blockSize);
+    }
+
+    // Método para escolher o tamanho de bloco de um ficheiro: o tamanho configurado no nó, duplicado para
+    // ficheiros grandes até o número de blocos ficar perto de TARGET_BLOCKS (no máximo MAX_BLOCK_SIZE)
+    public static int blockSizeFor(long fileSize, int baseBlockSize) {
+        long blockSize = Math.min(Math.max(baseBlockSize, 1), MAX_BLOCK_SIZE);
+        while (blockSize < MAX_BLOCK_SIZE && fileSize / blockSize > TARGET_BLOCKS) {
+            blockSize *= 2;
+        }
+        return (int) Math.min(blockSize, MAX_BLOCK_SIZE);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getFileChecksum() {
+        return fileChecksum;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getTotalBlocks() {
+        return totalBlocks;
+    }
+
+    // Método para verificar se um índice de bloco pertence ao ficheiro
+    public boolean hasBlock(int blockIndex) {
+        return blockIndex >= 0 && blockIndex < totalBlocks;
+    }
+
+    // Método para obter a posição do bloco no ficheiro
+    public long getBlockOffset(int blockIndex) {
+        return (long) blockIndex * blockSize;
+    }
+
+    // Método para obter o tamanho do bloco (o último pode ser mais pequeno)
+    public int getBlockLength(int blockIndex) {
+        return (int) Math.min(blockSize, fileSize - getBlockOffset(blockIndex));
+    }
+
+    // Método para obter a lista de hashes dos blocos, usada pelos outros nós para verificar cada bloco
+    // Devolve null se ainda não estiver calculada; nunca lê o ficheiro
+    public byte[] getBlockHashes() {
+        return blockHashes;
+    }
+
+    // Método para calcular a lista de hashes dos blocos (ou lê-la do disco), uma única vez
+    public byte[] computeBlockHashes(BlockHashStore store) throws IOException {
+        byte[] hashes = blockHashes;
+        if (hashes != null) {
+            return hashes;
+        }
+        synchronized (hashLock) {
+            if (blockHashes == null) {
+                hashes = store != null ? store.load(fileChecksum, blockSize, totalBlocks) : null;
+                if (hashes == null) {
+                    hashes = FileHasher.blockHashes(file, blockSize, totalBlocks);
+                    if (store != null) {
+                        store.save(fileChecksum, blockSize, hashes);
+                    }
+                }
+                blockHashes = hashes;
+            }
+            return blockHashes;
+        }
+    }
+
+    // Método para obter o FileChannel do ficheiro, aberto uma vez e reutilizado (leituras posicionais são seguras
+    // entre threads)
+    public synchronized FileChannel getChannel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        return channel;
+    }
+
+    // Método para fechar o FileChannel quando o ficheiro deixa de ser partilhado
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Erro ao fechar ficheiro " + file.getName() + ": " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FileBlockIndex{" +
+                "fileName='" + fileName + '\'' +
+                ", fileChecksum='" + fileChecksum + '\'' +
+                ", fileSize=" + fileSize +
+                ", blockSize=" + blockSize +
+                ", totalBlocks=" + totalBlocks +
+                '}';
+    }
+}
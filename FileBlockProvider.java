@@ -0,0 +1,180 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Classe que fornece os blocos dos ficheiros partilhados, lidos do disco apenas quando são pedidos
+//
+// Os dois índices (por checksum e por nome) estão juntos num objeto que é substituído de uma só vez quando a lista
+// de ficheiros é lida de novo; as alterações de um ficheiro são aplicadas aos mapas do índice atual.
+//
+// As listas de hashes dos blocos são calculadas numa thread própria assim que um ficheiro é registado, e não quando
+// um nó pede o ficheiro, para que os pedidos nunca esperem pela leitura de um ficheiro inteiro.
+public class FileBlockProvider {
+    private volatile Index index = new Index();
+    private int blockSize;
+    private final BlockHashStore hashStore; // Listas de hashes guardadas no disco (null se não forem guardadas)
+    // Uma única thread, para que os ficheiros sejam lidos um de cada vez
+    private final ExecutorService hashWorker = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "hashes-blocos");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public FileBlockProvider(int blockSize) {
+        this(blockSize, null);
+    }
+
+    public FileBlockProvider(int blockSize, BlockHashStore hashStore) {
+        this.blockSize = blockSize;
+        this.hashStore = hashStore;
+    }
+
+    // Método para substituir todos os ficheiros registados
+    public synchronized void replaceAll(List<FileBlockIndex> fileIndexes) {
+        Index previous = index;
+        Index next = new Index();
+        for (FileBlockIndex fileIndex : fileIndexes) {
+            // Reaproveitar o índice anterior do mesmo ficheiro, que pode ter o ficheiro aberto a enviar blocos
+            FileBlockIndex existing = previous.filesByName.get(fileIndex.getFileName());
+            if (existing != null && existing.getFile().equals(fileIndex.getFile())
+                    && existing.getFileChecksum().equals(fileIndex.getFileChecksum())
+                    && existing.getFileSize() == fileIndex.getFileSize()) {
+                fileIndex = existing;
+            }
+            next.addByChecksum(fileIndex);
+            next.filesByName.put(fileIndex.getFileName(), fileIndex);
+        }
+        index = next;
+        for (FileBlockIndex fileIndex : previous.filesByName.values()) {
+            if (next.filesByName.get(fileIndex.getFileName()) != fileIndex) {
+                fileIndex.close();
+            }
+        }
+        Set<String> checksums = new HashSet<>();
+        for (FileBlockIndex fileIndex : next.filesByName.values()) {
+            checksums.add(fileIndex.getFileChecksum());
+            computeBlockHashesLater(fileIndex);
+        }
+        if (hashStore != null) {
+            hashWorker.execute(() -> hashStore.retain(checksums)); // Esquecer os ficheiros que já não existem
+        }
+    }
+
+    // Método para calcular em segundo plano a lista de hashes dos blocos de um ficheiro registado
+    private void computeBlockHashesLater(FileBlockIndex fileIndex) {
+        if (fileIndex.getBlockHashes() != null) {
+            return;
+        }
+        hashWorker.execute(() -> {
+            if (index.filesByName.get(fileIndex.getFileName()) != fileIndex) {
+                return; // Deixou de ser partilhado entretanto
+            }
+            try {
+                fileIndex.computeBlockHashes(hashStore);
+            } catch (IOException e) {
+                System.out.println("Erro ao calcular hashes dos blocos de " + fileIndex.getFileName() + ": "
+                        + e.getMessage());
+            }
+        });
+    }
+
+    // Método para registar um ficheiro partilhado (apenas metadados, sem ler os dados)
+    public synchronized void addFile(String fileName, File file, String fileChecksum) {
+        FileBlockIndex fileIndex = new FileBlockIndex(file, fileName, fileChecksum, blockSize);
+        Index current = index;
+        current.addByChecksum(fileIndex);
+        FileBlockIndex previous = current.filesByName.put(fileName, fileIndex);
+        if (previous != null) {
+            current.removeByChecksum(previous);
+            previous.close();
+        }
+        computeBlockHashesLater(fileIndex);
+    }
+
+    // Método para retirar um ficheiro que deixou de ser partilhado
+    // Se outro ficheiro partilhado tiver o mesmo conteúdo, os pedidos por checksum passam a usar esse ficheiro
+    public synchronized void removeFile(String fileName, File file, String fileChecksum) {
+        Index current = index;
+        FileBlockIndex byName = current.filesByName.get(fileName);
+        if (byName != null && byName.getFile().equals(file)) {
+            current.filesByName.remove(fileName, byName);
+            current.removeByChecksum(byName);
+            byName.close();
+        }
+    }
+
+    // Método para obter o índice de blocos de um ficheiro pelo checksum
+    public FileBlockIndex getFileIndex(String fileChecksum) {
+        return index.firstByChecksum(fileChecksum);
+    }
+
+    // Método para obter o índice de blocos de um ficheiro pelo nome
+    public FileBlockIndex getFileIndexByName(String fileName) {
+        return index.filesByName.get(fileName);
+    }
+
+    // Método para obter o tamanho dos blocos de cada ficheiro partilhado, pelo checksum (para os anúncios)
+    public Map<String, Integer> getBlockSizesByChecksum() {
+        Map<String, Integer> blockSizes = new HashMap<>();
+        for (List<FileBlockIndex> sameContent : index.filesByChecksum.values()) {
+            blockSizes.put(sameContent.get(0).getFileChecksum(), sameContent.get(0).getBlockSize());
+        }
+        return blockSizes;
+    }
+
+    // Método para obter o número de blocos de um ficheiro pelo nome
+    public int getTotalBlocks(String fileName) {
+        FileBlockIndex fileIndex = index.filesByName.get(fileName);
+        return fileIndex != null ? fileIndex.getTotalBlocks() : 0;
+    }
+
+    // Método para obter um bloco a pedido; os dados só são lidos do disco quando forem enviados
+    public BlockRegion getBlock(String fileChecksum, int blockIndex, NodeConnection originNode) {
+        FileBlockIndex fileIndex = index.firstByChecksum(fileChecksum);
+        if (fileIndex == null || !fileIndex.hasBlock(blockIndex)) {
+            return null;
+        }
+        return new BlockRegion(fileIndex, blockIndex, originNode);
+    }
+
+    private static class Index {
+        // Por checksum: todos os ficheiros com esse conteúdo (listas imutáveis, substituídas a cada alteração)
+        private final Map<String, List<FileBlockIndex>> filesByChecksum = new ConcurrentHashMap<>();
+        private final Map<String, FileBlockIndex> filesByName = new ConcurrentHashMap<>(); // Por caminho relativo
+
+        private FileBlockIndex firstByChecksum(String fileChecksum) {
+            List<FileBlockIndex> sameContent = filesByChecksum.get(fileChecksum);
+            return sameContent != null ? sameContent.get(0) : null;
+        }
+
+        private void addByChecksum(FileBlockIndex fileIndex) {
+            List<FileBlockIndex> sameContent = new ArrayList<>(
+                    filesByChecksum.getOrDefault(fileIndex.getFileChecksum(), Collections.emptyList()));
+            sameContent.add(fileIndex);
+            filesByChecksum.put(fileIndex.getFileChecksum(), Collections.unmodifiableList(sameContent));
+        }
+
+        private void removeByChecksum(FileBlockIndex fileIndex) {
+            List<FileBlockIndex> previous = filesByChecksum.get(fileIndex.getFileChecksum());
+            if (previous == null) {
+                return;
+            }
+            List<FileBlockIndex> sameContent = new ArrayList<>(previous);
+            sameContent.remove(fileIndex);
+            if (sameContent.isEmpty()) {
+                filesByChecksum.remove(fileIndex.getFileChecksum());
+            } else {
+                filesByChecksum.put(fileIndex.getFileChecksum(), Collections.unmodifiableList(sameContent));
+            }
+        }
+    }
+}
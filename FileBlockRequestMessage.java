@@ -20,12 +20,6 @@ class FileBlockRequestMessage implements Serializable {
         this.data = data;
         this.fileChecksum = fileChecksum;
         this.originNode = originNode;
-        try {
-            byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
-            this.blockChecksum = new BigInteger(1, hash).toString(16);
-        } catch (NoSuchAlgorithmException e) {
-            System.out.println("Erro ao criar instância de MessageDigest: " + e.getMessage());
-        }
     }
 
     public String getFileName() {
@@ -48,7 +42,16 @@ class FileBlockRequestMessage implements Serializable {
         return fileChecksum;
     }
 
+    // O checksum do bloco só é calculado quando for necessário
     public String getBlockChecksum() {
+        if (blockChecksum == null && data != null) {
+            try {
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
+                this.blockChecksum = new BigInteger(1, hash).toString(16);
+            } catch (NoSuchAlgorithmException e) {
+                System.out.println("Erro ao criar instância de MessageDigest: " + e.getMessage());
+            }
+        }
         return blockChecksum;
     }
 
@@ -63,7 +66,7 @@ class FileBlockRequestMessage implements Serializable {
                 ", blockIndex=" + blockIndex +
                 ", blockSize=" + blockSize +
                 ", fileChecksum='" + fileChecksum + '\'' +
-                ", blockChecksum='" + blockChecksum + '\'' +
+                ", blockChecksum='" + getBlockChecksum() + '\'' +
                 ", originNode=" + originNode +
                 '}';
     }
@@ -0,0 +1,91 @@
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Classe que calcula o SHA-256 de ficheiros por partes, sem carregar o ficheiro inteiro em memória
+public class FileHasher {
+    private static final int BUFFER_SIZE = 1024 * 1024; // 1MB
+    public static final int HASH_BYTES = 32;
+
+    // Um buffer direto e um MessageDigest reutilizados por cada thread
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal
+            .withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 não disponível", e);
+        }
+    });
+
+    private FileHasher() {
+    }
+
+    // Método para calcular o checksum de um ficheiro (mesmo formato hexadecimal usado no resto da aplicação)
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest = DIGESTS.get();
+        digest.reset();
+        ByteBuffer buffer = BUFFERS.get();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    // Método para calcular o SHA-256 de um bloco em memória
+    public static byte[] sha256(byte[] data) {
+        MessageDigest digest = DIGESTS.get();
+        digest.reset();
+        return digest.digest(data);
+    }
+
+    // Método para calcular o SHA-256 de cada bloco de um ficheiro, numa única passagem sequencial
+    // Devolve os hashes concatenados (HASH_BYTES por bloco)
+    public static byte[] blockHashes(File file, int blockSize, int totalBlocks) throws IOException {
+        byte[] hashes = new byte[totalBlocks * HASH_BYTES];
+        MessageDigest digest = DIGESTS.get();
+        ByteBuffer buffer = BUFFERS.get();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            for (int blockIndex = 0; blockIndex < totalBlocks; blockIndex++) {
+                long position = (long) blockIndex * blockSize;
+                long remaining = Math.min(blockSize, fileSize - position);
+                digest.reset();
+                while (remaining > 0) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                    int read = channel.read(buffer, position);
+                    if (read < 0) {
+                        throw new IOException("Fim de ficheiro inesperado em " + file.getName());
+                    }
+                    buffer.flip();
+                    digest.update(buffer);
+                    position += read;
+                    remaining -= read;
+                }
+                try {
+                    digest.digest(hashes, blockIndex * HASH_BYTES, HASH_BYTES);
+                } catch (DigestException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+        return hashes;
+    }
+
+    // Método para converter um hash para texto hexadecimal
+    public static String toHex(byte[] hash) {
+        return new BigInteger(1, hash).toString(16);
+    }
+}
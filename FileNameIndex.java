@@ -0,0 +1,269 @@
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Índice invertido de trigramas dos nomes dos ficheiros partilhados, usado para responder às pesquisas
+//
+// Cada ficheiro recebe um número sequencial e cada trigrama do nome (em minúsculas) guarda a lista ordenada dos
+// ficheiros que o contêm. Uma pesquisa é dividida em palavras; os ficheiros candidatos são a interseção das listas
+// dos trigramas de todas as palavras, e só esses são comparados com a pesquisa. Os ficheiros removidos ficam
+// marcados como apagados e as listas são reconstruídas quando metade das entradas estiver apagada.
+public class FileNameIndex {
+    private static final int GRAM = 3;
+
+    private final Map<Long, IntList> postings = new HashMap<>(); // Trigrama -> ficheiros (por ordem crescente)
+    private final List<File> files = new ArrayList<>(); // Posição = número do ficheiro (null se removido)
+    private final List<String> names = new ArrayList<>(); // Nomes (caminhos relativos) em minúsculas
+    private final Map<File, Integer> ids = new HashMap<>();
+    private int removed;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Método para adicionar (ou atualizar) um ficheiro no índice, pesquisável pelo nome dado
+    public void add(File file, String name) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(file);
+            addLocked(file, name);
+            if (removed > ids.size()) {
+                rebuild();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Método para retirar um ficheiro do índice
+    public void remove(File file) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(file);
+            if (removed > ids.size()) {
+                rebuild();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Método para substituir todo o conteúdo do índice (nome -> ficheiro)
+    public void replaceAll(Map<String, File> newFiles) {
+        lock.writeLock().lock();
+        try {
+            postings.clear();
+            files.clear();
+            names.clear();
+            ids.clear();
+            removed = 0;
+            for (Map.Entry<String, File> entry : newFiles.entrySet()) {
+                addLocked(entry.getValue(), entry.getKey());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Método para pesquisar: devolve no máximo limit ficheiros cujo nome contém todas as palavras da pesquisa,
+    // ordenados do mais relevante para o menos relevante
+    public List<File> search(String query, int limit) {
+        String normalizedQuery = query == null ? "" : query.toLowerCase().trim();
+        List<String> words = new ArrayList<>();
+        for (String word : normalizedQuery.split("\\s+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        if (limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        lock.readLock().lock();
+        try {
+            // Os piores resultados ficam no topo da fila, para serem descartados quando houver limit melhores
+            PriorityQueue<ScoredFile> best = new PriorityQueue<>(Comparator.comparingDouble(ScoredFile::getScore));
+            IntList candidates = candidates(words);
+            int count = candidates != null ? candidates.size() : files.size();
+            for (int i = 0; i < count; i++) {
+                int id = candidates != null ? candidates.get(i) : i;
+                File file = files.get(id);
+                if (file == null || !matches(names.get(id), words)) {
+                    continue;
+                }
+                best.add(new ScoredFile(file, score(names.get(id), normalizedQuery, words)));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+            List<File> results = new ArrayList<>(best.size());
+            while (!best.isEmpty()) {
+                results.add(best.poll().getFile());
+            }
+            Collections.reverse(results);
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Interseção das listas dos trigramas das palavras (null se nenhuma palavra tiver trigramas)
+    private IntList candidates(List<String> words) {
+        List<IntList> lists = new ArrayList<>();
+        for (String word : words) {
+            for (int i = 0; i + GRAM <= word.length(); i++) {
+                IntList list = postings.get(gram(word, i));
+                if (list == null) {
+                    return new IntList(); // Um trigrama sem ficheiros: nenhum resultado
+                }
+                lists.add(list);
+            }
+        }
+        if (lists.isEmpty()) {
+            return null;
+        }
+        lists.sort(Comparator.comparingInt(IntList::size)); // Começar pela lista mais curta
+        IntList result = lists.get(0);
+        for (int i = 1; i < lists.size() && result.size() > 0; i++) {
+            result = result.intersect(lists.get(i));
+        }
+        return result;
+    }
+
+    private static boolean matches(String name, List<String> words) {
+        for (String word : words) {
+            if (!name.contains(word)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Relevância: nome igual à pesquisa, pesquisa completa contida no nome, palavras no início do nome ou de uma
+    // palavra do nome e, por fim, nomes mais curtos
+    private static double score(String name, String query, List<String> words) {
+        double score = 0;
+        if (name.equals(query)) {
+            score += 100;
+        } else if (!query.isEmpty() && name.contains(query)) {
+            score += 50;
+        }
+        for (String word : words) {
+            int position = name.indexOf(word);
+            if (position == 0) {
+                score += 10;
+            } else if (position > 0 && !Character.isLetterOrDigit(name.charAt(position - 1))) {
+                score += 5;
+            }
+        }
+        return score - name.length() / 1000.0;
+    }
+
+    private void addLocked(File file, String originalName) {
+        int id = files.size();
+        String name = originalName.toLowerCase();
+        files.add(file);
+        names.add(name);
+        ids.put(file, id);
+        long[] grams = new long[Math.max(0, name.length() - GRAM + 1)];
+        for (int i = 0; i < grams.length; i++) {
+            grams[i] = gram(name, i);
+        }
+        Arrays.sort(grams); // Para ignorar trigramas repetidos no mesmo nome
+        for (int i = 0; i < grams.length; i++) {
+            if (i == 0 || grams[i] != grams[i - 1]) {
+                postings.computeIfAbsent(grams[i], key -> new IntList()).add(id); // Os números são crescentes
+            }
+        }
+    }
+
+    private void removeLocked(File file) {
+        Integer id = ids.remove(file);
+        if (id != null) {
+            files.set(id, null);
+            names.set(id, null);
+            removed++;
+        }
+    }
+
+    // Reconstruir as listas sem os ficheiros removidos
+    private void rebuild() {
+        List<File> liveFiles = new ArrayList<>(ids.size());
+        List<String> liveNames = new ArrayList<>(ids.size());
+        for (int i = 0; i < files.size(); i++) {
+            if (files.get(i) != null) {
+                liveFiles.add(files.get(i));
+                liveNames.add(names.get(i));
+            }
+        }
+        postings.clear();
+        files.clear();
+        names.clear();
+        ids.clear();
+        removed = 0;
+        for (int i = 0; i < liveFiles.size(); i++) {
+            addLocked(liveFiles.get(i), liveNames.get(i));
+        }
+    }
+
+    // Três caracteres UTF-16 num long
+    private static long gram(String text, int start) {
+        return ((long) text.charAt(start) << 32) | ((long) text.charAt(start + 1) << 16) | text.charAt(start + 2);
+    }
+
+    // Lista de inteiros sem objetos por elemento, para que o índice ocupe pouca memória
+    private static class IntList {
+        private int[] values = new int[2];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+        // Interseção de duas listas ordenadas
+        IntList intersect(IntList other) {
+            IntList result = new IntList();
+            int i = 0;
+            int j = 0;
+            while (i < size && j < other.size) {
+                if (values[i] < other.values[j]) {
+                    i++;
+                } else if (values[i] > other.values[j]) {
+                    j++;
+                } else {
+                    result.add(values[i]);
+                    i++;
+                    j++;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static class ScoredFile {
+        private final File file;
+        private final double score;
+
+        ScoredFile(File file, double score) {
+            this.file = file;
+            this.score = score;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        double getScore() {
+            return score;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Classe que converte as mensagens para o protocolo binário usado entre nós
+//
+// Cada trama tem o formato: comprimento (int) | tipo (byte) | id do pedido (long) | corpo
+// O comprimento conta todos os bytes a seguir a ele. Os checksums SHA-256 viajam como 32 bytes.
+public class MessageCodec {
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024; // 16MB
+    private static final int CHECKSUM_BYTES = 32;
+
+    // Tipos de mensagem
+    public static final byte EMPTY = 0; // Resposta sem conteúdo (por exemplo, bloco não encontrado)
+    public static final byte HELLO = 1;
+    public static final byte SEARCH = 2;
+    public static final byte SEARCH_RESULTS = 3;
+    public static final byte DOWNLOAD = 4;
+    public static final byte DOWNLOAD_RESULT = 5;
+    public static final byte BLOCK = 6;
+    public static final byte BLOCK_DATA = 7;
+    public static final byte PEX = 8;
+    public static final byte ANNOUNCE = 9; // Enviada sem resposta, com id de pedido 0
+
+    private MessageCodec() {
+    }
+
+    // Método para escrever uma trama num stream; os dados de um bloco são escritos diretamente do seu buffer
+    public static void writeFrame(DataOutputStream out, long requestId, Object message) throws IOException {
+        for (ByteBuffer buffer : encodeFrame(requestId, message)) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        out.flush();
+    }
+
+    // Método para codificar o cabeçalho de uma trama BLOCK_DATA cujos dados são enviados a seguir a partir do
+    // ficheiro (o comprimento da trama já conta com eles)
+    public static ByteBuffer encodeBlockHeader(long requestId, BlockRegion block) throws IOException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(64);
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(0); // Comprimento, preenchido no fim
+        writeBlockHeader(header, requestId, block.getFileChecksum(), block.getBlockIndex(), block.getFileName(),
+                block.getOriginNode(), block.getLength());
+        header.flush();
+        ByteBuffer headerBuffer = ByteBuffer.wrap(headerBytes.toByteArray());
+        headerBuffer.putInt(0, headerBytes.size() - 4 + block.getLength());
+        return headerBuffer;
+    }
+
+    // Método para codificar uma trama: o cabeçalho (com o comprimento) e, para blocos, os dados sem cópia
+    public static ByteBuffer[] encodeFrame(long requestId, Object message) throws IOException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(64);
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        byte[] payload = null;
+        header.writeInt(0); // Comprimento, preenchido no fim
+
+        if (message == null) {
+            header.writeByte(EMPTY);
+            header.writeLong(requestId);
+        } else if (message instanceof HelloMessage) {
+            HelloMessage hello = (HelloMessage) message;
+            header.writeByte(HELLO);
+            header.writeLong(requestId);
+            writeString(header, hello.getIpAddress());
+            header.writeInt(hello.getPort());
+        } else if (message instanceof SearchMessage) {
+            SearchMessage search = (SearchMessage) message;
+            header.writeByte(SEARCH);
+            header.writeLong(requestId);
+            writeString(header, search.getQuery());
+            header.writeLong(search.getQueryId());
+            header.writeByte(search.getTtl());
+        } else if (message instanceof SearchResultsMessage) {
+            SearchResultsMessage searchResults = (SearchResultsMessage) message;
+            List<SearchResult> results = searchResults.getResults();
+            header.writeByte(SEARCH_RESULTS);
+            header.writeLong(requestId);
+            header.writeBoolean(searchResults.isLast());
+            // Os nós que têm os ficheiros vão numa tabela, e cada resultado indica a posição do seu nó na tabela
+            // (normalmente todos os resultados de uma parte são do mesmo nó)
+            Map<NodeConnection, Integer> holders = new LinkedHashMap<>();
+            for (SearchResult result : results) {
+                holders.putIfAbsent(result.getHolder(), holders.size());
+            }
+            header.writeInt(holders.size());
+            for (NodeConnection holder : holders.keySet()) {
+                writeString(header, holder.getIpAddress());
+                header.writeInt(holder.getPort());
+            }
+            header.writeInt(results.size());
+            for (SearchResult result : results) {
+                writeString(header, result.getFileName());
+                header.writeLong(result.getFileSize());
+                writeChecksum(header, result.getChecksum());
+                header.writeInt(holders.get(result.getHolder()));
+            }
+        } else if (message instanceof DownloadMessage) {
+            header.writeByte(DOWNLOAD);
+            header.writeLong(requestId);
+            DownloadMessage download = (DownloadMessage) message;
+            writeString(header, download.getFileName());
+            writeChecksum(header, download.getChecksum());
+        } else if (message instanceof DownloadResultMessage) {
+            DownloadResultMessage result = (DownloadResultMessage) message;
+            header.writeByte(DOWNLOAD_RESULT);
+            header.writeLong(requestId);
+            header.writeBoolean(result.hasFile());
+            writeChecksum(header, result.getChecksum());
+            header.writeInt(result.getFileBlocks());
+            header.writeLong(result.getFileSize());
+            header.writeInt(result.getBlockSize());
+            header.writeInt(result.getBlockHashes().length);
+            header.write(result.getBlockHashes());
+        } else if (message instanceof PeerExchangeMessage) {
+            header.writeByte(PEX);
+            header.writeLong(requestId);
+            writeNodes(header, ((PeerExchangeMessage) message).getPeers());
+        } else if (message instanceof AnnounceMessage) {
+            AnnounceMessage announcement = (AnnounceMessage) message;
+            header.writeByte(ANNOUNCE);
+            header.writeLong(requestId);
+            writeNodes(header, Collections.singletonList(announcement.getNode()));
+            header.writeBoolean(announcement.isFull());
+            header.writeInt(announcement.getAdded().size());
+            for (Map.Entry<String, Integer> entry : announcement.getAdded().entrySet()) {
+                writeChecksum(header, entry.getKey());
+                header.writeInt(entry.getValue());
+            }
+            header.writeInt(announcement.getRemoved().size());
+            for (String checksum : announcement.getRemoved()) {
+                writeChecksum(header, checksum);
+            }
+        } else if (message instanceof BlockMessage) {
+            BlockMessage block = (BlockMessage) message;
+            header.writeByte(BLOCK);
+            header.writeLong(requestId);
+            writeChecksum(header, block.getChecksum());
+            header.writeInt(block.getBlockIndex());
+        } else if (message instanceof FileBlockRequestMessage) {
+            FileBlockRequestMessage block = (FileBlockRequestMessage) message;
+            payload = block.getData();
+            writeBlockHeader(header, requestId, block.getFileChecksum(), block.getBlockIndex(), block.getFileName(),
+                    block.getOriginNode(), payload.length);
+        } else if (message instanceof BlockRegion) {
+            // Fora do servidor NIO os dados do bloco são lidos para memória
+            BlockRegion block = (BlockRegion) message;
+            payload = block.read();
+            writeBlockHeader(header, requestId, block.getFileChecksum(), block.getBlockIndex(), block.getFileName(),
+                    block.getOriginNode(), payload.length);
+        } else {
+            throw new IOException("Tipo de mensagem desconhecido: " + message.getClass().getName());
+        }
+
+        header.flush();
+        ByteBuffer headerBuffer = ByteBuffer.wrap(headerBytes.toByteArray());
+        headerBuffer.putInt(0, headerBytes.size() - 4 + (payload != null ? payload.length : 0));
+        if (payload == null) {
+            return new ByteBuffer[] { headerBuffer };
+        }
+        return new ByteBuffer[] { headerBuffer, ByteBuffer.wrap(payload) };
+    }
+
+    // Método para ler uma trama completa do stream
+    // O corpo é lido por inteiro antes de ser descodificado, para que uma trama mal formada nunca consuma bytes da
+    // trama seguinte
+    public static MessageEnvelope readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 9 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Trama com comprimento inválido: " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decodeFrame(body, 0, length);
+    }
+
+    // Método para descodificar o corpo de uma trama com exatamente length bytes (depois do comprimento)
+    public static MessageEnvelope decodeFrame(byte[] data, int offset, int length) throws IOException {
+        ByteArrayInputStream body = new ByteArrayInputStream(data, offset, length);
+        MessageEnvelope envelope;
+        try {
+            envelope = decodeBody(new DataInputStream(body));
+        } catch (EOFException e) {
+            throw new IOException("Trama mais curta do que o conteúdo indicado: " + length + " bytes");
+        }
+        if (body.available() > 0) {
+            throw new IOException("Trama com " + body.available() + " bytes a mais");
+        }
+        return envelope;
+    }
+
+    // Método para descodificar o corpo de uma trama (depois do comprimento)
+    private static MessageEnvelope decodeBody(DataInput in) throws IOException {
+        byte type = in.readByte();
+        long requestId = in.readLong();
+        Object message;
+        switch (type) {
+            case EMPTY:
+                message = null;
+                break;
+            case HELLO: {
+                String ipAddress = readString(in);
+                int port = in.readInt();
+                message = new HelloMessage(ipAddress, port);
+                break;
+            }
+            case SEARCH: {
+                String query = readString(in);
+                long queryId = in.readLong();
+                int ttl = in.readUnsignedByte();
+                message = new SearchMessage(query, queryId, ttl);
+                break;
+            }
+            case SEARCH_RESULTS: {
+                boolean last = in.readBoolean();
+                int holderCount = readLength(in);
+                List<NodeConnection> holders = new ArrayList<>(Math.min(holderCount, 1024));
+                for (int i = 0; i < holderCount; i++) {
+                    String ipAddress = readString(in);
+                    holders.add(new NodeConnection(ipAddress, in.readInt()));
+                }
+                int count = readLength(in);
+                List<SearchResult> results = new ArrayList<>(Math.min(count, 1024));
+                for (int i = 0; i < count; i++) {
+                    String fileName = readString(in);
+                    long fileSize = in.readLong();
+                    String checksum = readChecksum(in);
+                    int holder = in.readInt();
+                    if (holder < 0 || holder >= holders.size()) {
+                        throw new IOException("Nó inválido num resultado de pesquisa: " + holder);
+                    }
+                    results.add(new SearchResult(fileName, fileSize, checksum, holders.get(holder)));
+                }
+                message = new SearchResultsMessage(results, last);
+                break;
+            }
+            case DOWNLOAD: {
+                String fileName = readString(in);
+                message = new DownloadMessage(fileName, readChecksum(in));
+                break;
+            }
+            case DOWNLOAD_RESULT: {
+                boolean hasFile = in.readBoolean();
+                String checksum = readChecksum(in);
+                int fileBlocks = in.readInt();
+                long fileSize = in.readLong();
+                int blockSize = in.readInt();
+                byte[] blockHashes = new byte[readLength(in)];
+                in.readFully(blockHashes);
+                message = new DownloadResultMessage(checksum, hasFile, fileBlocks, fileSize, blockSize, blockHashes);
+                break;
+            }
+            case PEX:
+                message = new PeerExchangeMessage(readNodes(in));
+                break;
+            case ANNOUNCE: {
+                List<NodeConnection> nodes = readNodes(in);
+                if (nodes.size() != 1) {
+                    throw new IOException("Anúncio com " + nodes.size() + " nós.");
+                }
+                boolean full = in.readBoolean();
+                int addedCount = readLength(in);
+                Map<String, Integer> added = new LinkedHashMap<>();
+                for (int i = 0; i < addedCount; i++) {
+                    String checksum = readChecksum(in);
+                    added.put(checksum, in.readInt());
+                }
+                int removedCount = readLength(in);
+                List<String> removed = new ArrayList<>(Math.min(removedCount, 1024));
+                for (int i = 0; i < removedCount; i++) {
+                    removed.add(readChecksum(in));
+                }
+                message = new AnnounceMessage(nodes.get(0), full, added, removed);
+                break;
+            }
+            case BLOCK: {
+                String checksum = readChecksum(in);
+                int blockIndex = in.readInt();
+                message = new BlockMessage(checksum, blockIndex);
+                break;
+            }
+            case BLOCK_DATA: {
+                String fileChecksum = readChecksum(in);
+                int blockIndex = in.readInt();
+                String fileName = readString(in);
+                String originIp = readString(in);
+                int originPort = in.readInt();
+                int dataLength = readLength(in);
+                byte[] data = new byte[dataLength];
+                in.readFully(data);
+                message = new FileBlockRequestMessage(fileName, blockIndex, dataLength, data, fileChecksum,
+                        new NodeConnection(originIp, originPort));
+                break;
+            }
+            default:
+                throw new IOException("Tipo de trama desconhecido: " + type);
+        }
+        return new MessageEnvelope(requestId, message);
+    }
+
+    private static void writeBlockHeader(DataOutput out, long requestId, String fileChecksum, int blockIndex,
+            String fileName, NodeConnection originNode, int dataLength) throws IOException {
+        out.writeByte(BLOCK_DATA);
+        out.writeLong(requestId);
+        writeChecksum(out, fileChecksum);
+        out.writeInt(blockIndex);
+        writeString(out, fileName);
+        writeString(out, originNode.getIpAddress());
+        out.writeInt(originNode.getPort());
+        out.writeInt(dataLength);
+    }
+
+    private static void writeNodes(DataOutput out, List<NodeConnection> nodes) throws IOException {
+        out.writeInt(nodes.size());
+        for (NodeConnection node : nodes) {
+            writeString(out, node.getIpAddress());
+            out.writeInt(node.getPort());
+        }
+    }
+
+    private static List<NodeConnection> readNodes(DataInput in) throws IOException {
+        int count = readLength(in);
+        List<NodeConnection> nodes = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            String ipAddress = readString(in);
+            nodes.add(new NodeConnection(ipAddress, in.readInt()));
+        }
+        return nodes;
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readLength(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Comprimento inválido na trama: " + length);
+        }
+        return length;
+    }
+
+    // Os checksums são texto hexadecimal em memória e 32 bytes na rede (0 bytes se vazio)
+    private static void writeChecksum(DataOutput out, String checksum) throws IOException {
+        if (checksum == null || checksum.isEmpty()) {
+            out.writeByte(0);
+            return;
+        }
+        byte[] raw;
+        try {
+            raw = new BigInteger(checksum, 16).toByteArray();
+        } catch (NumberFormatException e) {
+            throw new IOException("Checksum inválido: " + checksum);
+        }
+        byte[] fixed = new byte[CHECKSUM_BYTES];
+        int length = Math.min(raw.length, CHECKSUM_BYTES);
+        System.arraycopy(raw, raw.length - length, fixed, CHECKSUM_BYTES - length, length);
+        out.writeByte(CHECKSUM_BYTES);
+        out.write(fixed);
+    }
+
+    private static String readChecksum(DataInput in) throws IOException {
+        int length = in.readUnsignedByte();
+        if (length == 0) {
+            return "";
+        }
+        if (length != CHECKSUM_BYTES) {
+            throw new IOException("Checksum com tamanho inválido: " + length);
+        }
+        byte[] raw = new byte[CHECKSUM_BYTES];
+        in.readFully(raw);
+        return FileHasher.toHex(raw);
+    }
+}
@@ -0,0 +1,26 @@
+// Classe que associa um identificador de pedido a cada mensagem trocada numa ligação persistente
+public class MessageEnvelope {
+    private long requestId;
+    private Object payload;
+
+    public MessageEnvelope(long requestId, Object payload) {
+        this.requestId = requestId;
+        this.payload = payload;
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public Object getPayload() {
+        return payload;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageEnvelope{" +
+                "requestId=" + requestId +
+                ", payload=" + payload +
+                '}';
+    }
+}
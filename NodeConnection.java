@@ -1,8 +1,9 @@
 import java.io.Serializable;
+import java.util.Objects;
 
 public class NodeConnection implements Serializable {
-    private String ip;
-    private int port;
+    private final String ip;
+    private final int port;
 
     public NodeConnection(String ip, int port) {
         this.ip = ip;
@@ -17,6 +18,24 @@ public class NodeConnection implements Serializable {
         return port;
     }
 
+    // Dois nós são o mesmo se tiverem o mesmo IP e a mesma porta
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof NodeConnection)) {
+            return false;
+        }
+        NodeConnection node = (NodeConnection) other;
+        return port == node.port && Objects.equals(ip, node.ip);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(ip, port);
+    }
+
     @Override
     public String toString() {
         return ip + ":" + port;
@@ -0,0 +1,153 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+// Classe que representa um ficheiro em download, escrito no disco à medida que os blocos chegam
+//
+// Os blocos são escritos num ficheiro oculto ".<checksum>.part" na pasta partilhada (ignorado na partilha), que
+// só é movido para o nome final quando o download termina. Os blocos já recebidos ficam registados em
+// ".<checksum>.bitfield", para que um download interrompido possa ser retomado.
+public class PartFile implements Closeable {
+    private static final long CHECKPOINT_INTERVAL_MS = 1000;
+
+    private final Path partPath;
+    private final Path targetPath;
+    private final long fileSize;
+    private final int blockSize;
+    private final FileChannel channel;
+    private final DownloadManifest manifest;
+    private long lastCheckpoint = System.currentTimeMillis();
+
+    public PartFile(String sharedFolderPath, String fileName, String fileChecksum, long fileSize, int blockSize,
+            int totalBlocks) throws IOException {
+        this.targetPath = Paths.get(sharedFolderPath, fileName).normalize();
+        // O nome vem de outro nó: não pode sair da pasta partilhada nem ser um ficheiro oculto
+        Path folder = Paths.get(sharedFolderPath).normalize();
+        if (!targetPath.startsWith(folder) || targetPath.equals(folder) || fileName.startsWith(".")
+                || fileName.contains("/.") || fileName.contains("\\.")) {
+            throw new IOException("Nome de ficheiro inválido: " + fileName);
+        }
+        this.partPath = Paths.get(sharedFolderPath, "." + fileChecksum + ".part");
+        this.fileSize = fileSize;
+        this.blockSize = blockSize;
+
+        // Retomar o manifesto anterior (se existir) e reservar o tamanho final do ficheiro
+        this.manifest = DownloadManifest.open(Paths.get(sharedFolderPath, "." + fileChecksum + ".bitfield"),
+                fileName, fileSize, blockSize, totalBlocks);
+        try (RandomAccessFile file = new RandomAccessFile(partPath.toFile(), "rw")) {
+            file.setLength(fileSize);
+        } catch (IOException e) {
+            manifest.close();
+            throw e;
+        }
+        this.channel = FileChannel.open(partPath, StandardOpenOption.WRITE);
+        if (manifest.getReceivedCount() > 0) {
+            System.out.println("A retomar download: " + manifest);
+        }
+    }
+
+    // Método para obter os blocos que ainda faltam receber
+    public List<Integer> getMissingBlocks() {
+        List<Integer> missingBlocks = new ArrayList<>();
+        for (int i = 0; i < manifest.getTotalBlocks(); i++) {
+            if (!manifest.hasBlock(i)) {
+                missingBlocks.add(i);
+            }
+        }
+        return missingBlocks;
+    }
+
+    public boolean isBlockReceived(int blockIndex) {
+        return manifest.hasBlock(blockIndex);
+    }
+
+    public int getReceivedCount() {
+        return manifest.getReceivedCount();
+    }
+
+    public boolean isComplete() {
+        return manifest.getReceivedCount() == manifest.getTotalBlocks();
+    }
+
+    // Método para escrever um bloco na sua posição final do ficheiro; devolve false se o bloco já existia
+    public boolean writeBlock(int blockIndex, byte[] data) throws IOException {
+        long position = (long) blockIndex * blockSize;
+        if (position + data.length > fileSize) {
+            throw new IOException("Bloco " + blockIndex + " fora dos limites do ficheiro.");
+        }
+        if (manifest.hasBlock(blockIndex)) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+        boolean added = manifest.markReceived(blockIndex);
+
+        // Gravar o progresso periodicamente
+        if (System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL_MS) {
+            checkpoint();
+        }
+        return added;
+    }
+
+    // Método para gravar no disco os blocos recebidos e o respetivo bitfield
+    public synchronized void checkpoint() throws IOException {
+        lastCheckpoint = System.currentTimeMillis();
+        if (channel.isOpen()) {
+            manifest.flush(channel);
+        }
+    }
+
+    // Método para verificar o checksum do ficheiro completo
+    public boolean verify(String expectedChecksum) throws IOException {
+        checkpoint();
+        return FileHasher.sha256(partPath.toFile()).equals(expectedChecksum);
+    }
+
+    // Método para concluir o download: os dados são gravados e o ficheiro é movido para a pasta partilhada
+    public synchronized Path complete() throws IOException {
+        channel.force(false);
+        channel.close();
+        Files.createDirectories(targetPath.getParent()); // Ficheiros em subpastas
+        try {
+            Files.move(partPath, targetPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partPath, targetPath);
+        }
+        manifest.delete();
+        return targetPath;
+    }
+
+    // Método para interromper o download, mantendo o ficheiro parcial e o bitfield para o retomar mais tarde
+    public synchronized void suspend() {
+        try {
+            checkpoint();
+            close();
+        } catch (IOException e) {
+            System.out.println("Erro ao guardar o progresso do download: " + e.getMessage());
+        }
+    }
+
+    // Método para abandonar o download, apagando o ficheiro parcial e o bitfield
+    public synchronized void abort() {
+        try {
+            close();
+            Files.deleteIfExists(partPath);
+            manifest.delete();
+        } catch (IOException e) {
+            System.out.println("Erro ao apagar ficheiro parcial: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            channel.close();
+        }
+        manifest.close();
+    }
+}
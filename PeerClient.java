@@ -0,0 +1,204 @@
+import java.io.*;
+import java.net.*;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Classe que mantém uma ligação persistente a um nó, partilhada por vários pedidos em simultâneo
+public class PeerClient {
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    public static final long REQUEST_TIMEOUT_MS = 30000;
+
+    private final NodeConnection node;
+    private final Socket socket;
+    private final DataOutputStream dataOut;
+    private final DataInputStream dataIn;
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+    private final Map<Long, CompletableFuture<Object>> pendingRequests = new ConcurrentHashMap<>();
+    private final Map<Long, Consumer<Object>> partialResponses = new ConcurrentHashMap<>(); // Respostas por partes
+    private volatile boolean closed;
+    // Instante da última leitura de dados da ligação; muda a cada leitura do socket, e não só quando uma trama chega
+    // inteira, para que um nó lento a enviar um bloco grande continue a contar como ativo
+    private volatile long lastReceivedAt = System.currentTimeMillis();
+    private volatile long bytesReceived; // Bytes lidos da ligação (só a thread de leitura escreve)
+
+    public PeerClient(NodeConnection node) throws IOException {
+        this.node = node;
+        this.socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(node.getIpAddress(), node.getPort()), CONNECT_TIMEOUT_MS);
+            this.dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.dataIn = new DataInputStream(
+                    new BufferedInputStream(new ProgressInputStream(socket.getInputStream())));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        // Thread que lê as respostas e as entrega ao pedido correspondente
+        Thread reader = new Thread(this::readResponses, "peer-reader-" + node);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public NodeConnection getNode() {
+        return node;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public long getLastReceivedAt() {
+        return lastReceivedAt;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    // Método para enviar um pedido sem bloquear; a resposta (ou o timeout) chega pelo CompletableFuture
+    public CompletableFuture<Object> send(Object request) {
+        return send(request, REQUEST_TIMEOUT_MS);
+    }
+
+    // Método para enviar um pedido com um prazo próprio; cancelar o CompletableFuture descarta a resposta
+    public CompletableFuture<Object> send(Object request, long timeoutMs) {
+        return send(request, null, timeoutMs);
+    }
+
+    // Método para enviar um pedido cuja resposta chega em várias partes (resultados de pesquisa); onPart é chamado
+    // para cada parte, incluindo a última, que também termina o CompletableFuture
+    public CompletableFuture<Object> stream(Object request, Consumer<Object> onPart, long timeoutMs) {
+        return send(request, onPart, timeoutMs);
+    }
+
+    private CompletableFuture<Object> send(Object request, Consumer<Object> onPart, long timeoutMs) {
+        CompletableFuture<Object> response = new CompletableFuture<>();
+        if (closed) {
+            response.completeExceptionally(new IOException("Ligação ao nó " + node + " fechada."));
+            return response;
+        }
+        long requestId = nextRequestId.getAndIncrement();
+        if (onPart != null) {
+            partialResponses.put(requestId, onPart);
+        }
+        pendingRequests.put(requestId, response);
+        response.orTimeout(timeoutMs, TimeUnit.MILLISECONDS).whenComplete((result, error) -> {
+            pendingRequests.remove(requestId);
+            partialResponses.remove(requestId);
+        });
+        try {
+            synchronized (dataOut) {
+                MessageCodec.writeFrame(dataOut, requestId, request);
+            }
+        } catch (IOException e) {
+            pendingRequests.remove(requestId);
+            response.completeExceptionally(e);
+            close();
+        }
+        return response;
+    }
+
+    // Método para enviar uma mensagem que não tem resposta (id de pedido 0)
+    public void post(Object message) throws IOException {
+        if (closed) {
+            throw new IOException("Ligação ao nó " + node + " fechada.");
+        }
+        try {
+            synchronized (dataOut) {
+                MessageCodec.writeFrame(dataOut, 0, message);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // Método para enviar um pedido e esperar pela resposta
+    public Object request(Object request) throws IOException {
+        try {
+            return send(request).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Pedido ao nó " + node + " interrompido.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) {
+                throw new SocketTimeoutException("Sem resposta do nó " + node);
+            }
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    private void readResponses() {
+        try {
+            while (!closed) {
+                MessageEnvelope envelope = MessageCodec.readFrame(dataIn);
+                Object payload = envelope.getPayload();
+                Consumer<Object> onPart = partialResponses.get(envelope.getRequestId());
+                if (onPart != null) {
+                    onPart.accept(payload);
+                }
+                if (payload instanceof SearchResultsMessage && !((SearchResultsMessage) payload).isLast()) {
+                    continue; // Ainda faltam partes deste pedido
+                }
+                CompletableFuture<Object> response = pendingRequests.remove(envelope.getRequestId());
+                if (response != null) {
+                    response.complete(payload);
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.out.println("Ligação ao nó " + node + " terminada: " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    // Método para fechar a ligação e falhar os pedidos pendentes
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.out.println("Erro ao fechar ligação ao nó " + node + ": " + e.getMessage());
+        }
+        for (Long requestId : pendingRequests.keySet()) {
+            CompletableFuture<Object> response = pendingRequests.remove(requestId);
+            if (response != null) {
+                response.completeExceptionally(new IOException("Ligação ao nó " + node + " fechada."));
+            }
+        }
+    }
+
+    // Stream que regista o instante e o tamanho de cada leitura com dados
+    private class ProgressInputStream extends FilterInputStream {
+        private ProgressInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0) {
+                lastReceivedAt = System.currentTimeMillis();
+                bytesReceived++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                lastReceivedAt = System.currentTimeMillis();
+                bytesReceived += count;
+            }
+            return count;
+        }
+    }
+}
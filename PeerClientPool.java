@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+// Classe que guarda uma ligação persistente por nó, reaberta automaticamente quando cai
+public class PeerClientPool {
+    private final Map<NodeConnection, PeerClient> clients = new ConcurrentHashMap<>();
+    private final Consumer<PeerClient> onConnect; // Chamado para cada ligação nova, antes de ser publicada
+
+    public PeerClientPool() {
+        this(null);
+    }
+
+    public PeerClientPool(Consumer<PeerClient> onConnect) {
+        this.onConnect = onConnect;
+    }
+
+    // Método para obter a ligação a um nó, criando-a se ainda não existir
+    // A ligação é aberta fora do mapa (pode demorar até ao prazo de ligação) e só é publicada depois de onConnect;
+    // se outra thread publicar primeiro uma ligação ao mesmo nó, a ligação aberta aqui é fechada
+    public PeerClient get(NodeConnection node) throws IOException {
+        PeerClient existing = clients.get(node);
+        if (existing != null && !existing.isClosed()) {
+            return existing;
+        }
+        PeerClient created = new PeerClient(node);
+        if (onConnect != null) {
+            onConnect.accept(created);
+        }
+        while (true) {
+            PeerClient current = clients.putIfAbsent(node, created);
+            if (current == null) {
+                return created;
+            }
+            if (!current.isClosed()) {
+                created.close();
+                return current;
+            }
+            if (clients.replace(node, current, created)) {
+                return created;
+            }
+        }
+    }
+
+    // Método para obter a ligação a um nó, sem a abrir (null se não existir)
+    public PeerClient peek(NodeConnection node) {
+        return clients.get(node);
+    }
+
+    // Método para fechar a ligação a um nó
+    public void close(NodeConnection node) {
+        PeerClient client = clients.remove(node);
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    // Método para fechar todas as ligações
+    public void closeAll() {
+        for (PeerClient client : clients.values()) {
+            client.close();
+        }
+        clients.clear();
+    }
+}
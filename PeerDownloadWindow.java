@@ -0,0 +1,113 @@
+// Classe que controla quantos pedidos de blocos podem estar pendentes num nó ao mesmo tempo
+//
+// A janela ajusta-se ao RTT medido (como no TCP Vegas): se o RTT se aproxima do mínimo observado, a ligação
+// ainda tem capacidade e a janela cresce; se o RTT sobe, os pedidos estão a acumular-se em fila e a janela
+// diminui.
+public class PeerDownloadWindow {
+    private static final double ALPHA = 2; // Abaixo deste número de blocos em fila a janela cresce
+    private static final double BETA = 6; // Acima deste número de blocos em fila a janela diminui
+    private static final double RTT_GAIN = 0.125;
+    // Débito assumido antes da primeira medição, para calcular o prazo dos primeiros pedidos
+    private static final double MIN_EXPECTED_BYTES_PER_SECOND = 64 * 1024;
+
+    private final int minWindow;
+    private final int maxWindow;
+    private int window;
+    private int inFlight;
+    private int acksInRound;
+    private double smoothedRttMs;
+    private double minRttMs = Double.MAX_VALUE;
+    private double throughputBytesPerSecond;
+    private long lastAckNanos;
+
+    public PeerDownloadWindow(int initialWindow, int minWindow, int maxWindow) {
+        this.minWindow = minWindow;
+        this.maxWindow = maxWindow;
+        this.window = Math.max(minWindow, Math.min(initialWindow, maxWindow));
+    }
+
+    // Método para reservar um lugar na janela, esperando se estiver cheia
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= window) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    // Método para libertar um lugar sem alterar a janela (pedido não enviado)
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    // Método para registar a chegada de um bloco e ajustar a janela
+    public synchronized void onBlockReceived(long rttNanos, int bytes) {
+        double rttMs = rttNanos / 1_000_000.0;
+        minRttMs = Math.min(minRttMs, rttMs);
+        smoothedRttMs = smoothedRttMs == 0 ? rttMs : smoothedRttMs + RTT_GAIN * (rttMs - smoothedRttMs);
+
+        long now = System.nanoTime();
+        if (lastAckNanos != 0) {
+            double intervalSeconds = Math.max(now - lastAckNanos, 1) / 1_000_000_000.0;
+            double sample = bytes / intervalSeconds;
+            throughputBytesPerSecond = throughputBytesPerSecond == 0 ? sample
+                    : throughputBytesPerSecond + RTT_GAIN * (sample - throughputBytesPerSecond);
+        }
+        lastAckNanos = now;
+
+        // Ajustar a janela uma vez por cada janela de respostas recebidas
+        if (++acksInRound >= window) {
+            acksInRound = 0;
+            double queuedBlocks = window * (1 - minRttMs / smoothedRttMs);
+            if (queuedBlocks < ALPHA) {
+                window = Math.min(maxWindow, window + 1);
+            } else if (queuedBlocks > BETA) {
+                window = Math.max(minWindow, window - 1);
+            }
+        }
+        release();
+    }
+
+    // Método para registar uma falha: a janela é reduzida para metade
+    public synchronized void onFailure() {
+        window = Math.max(minWindow, window / 2);
+        acksInRound = 0;
+        release();
+    }
+
+    // Método para esperar que todos os pedidos pendentes terminem
+    public synchronized void awaitIdle() throws InterruptedException {
+        while (inFlight > 0) {
+            wait();
+        }
+    }
+
+    public synchronized int getWindow() {
+        return window;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized double getSmoothedRttMs() {
+        return smoothedRttMs;
+    }
+
+    // Método para calcular o prazo de um pedido acabado de reservar: o bloco só chega depois dos blocos pendentes à
+    // sua frente, por isso o prazo cresce com os dados em fila e diminui com o débito medido do nó
+    public synchronized long getRequestTimeoutMs(int blockSize) {
+        double bytesPerSecond = Math.max(throughputBytesPerSecond, MIN_EXPECTED_BYTES_PER_SECOND);
+        return PeerClient.REQUEST_TIMEOUT_MS + (long) ((double) inFlight * blockSize * 1000 / bytesPerSecond);
+    }
+
+    public synchronized double getThroughputBytesPerSecond() {
+        return throughputBytesPerSecond;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "janela=" + window + ", rtt=" + String.format("%.2f", smoothedRttMs) + "ms, débito="
+                + App.convertBytes((long) throughputBytesPerSecond) + "/s";
+    }
+}
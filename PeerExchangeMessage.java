@@ -0,0 +1,21 @@
+import java.util.List;
+
+// Mensagem de troca de nós (PEX): cada lado envia os nós a que está ligado e que estão a responder
+public class PeerExchangeMessage extends Message {
+    private List<NodeConnection> peers;
+
+    public PeerExchangeMessage(List<NodeConnection> peers) {
+        super("PEX", "PEX"); // A lista só é formatada em toString()
+        this.peers = peers;
+    }
+
+    public List<NodeConnection> getPeers() {
+        return peers;
+    }
+
+    @Override
+    public String toString() {
+        return "PEX:" + peers;
+    }
+
+}
@@ -0,0 +1,119 @@
+import java.util.*;
+
+// Classe que guarda os nós conhecidos, sem repetições, e o estado de cada um
+//
+// As leituras (pesquisas, downloads, interface gráfica) usam cópias imutáveis das listas, substituídas a cada
+// alteração, por isso não precisam de locks e nunca veem uma lista a meio de uma alteração.
+//
+// Cada nó recebe um heartbeat periódico. Um nó que falha deixa de ser usado nas pesquisas e nos downloads e volta a
+// ser testado com um intervalo que duplica a cada falha; ao fim de MAX_FAILURES falhas seguidas é removido.
+public class PeerRegistry {
+    public static final long HEARTBEAT_INTERVAL_MS = 10000; // Intervalo entre heartbeats a um nó ativo
+    private static final long BASE_BACKOFF_MS = 2000; // Espera depois da primeira falha
+    private static final long MAX_BACKOFF_MS = 60000;
+    private static final int MAX_FAILURES = 6; // Falhas seguidas até o nó ser removido (cerca de 2 minutos)
+
+    private final Map<NodeConnection, PeerState> peers = new LinkedHashMap<>(); // Pela ordem em que foram adicionados
+    private volatile List<NodeConnection> snapshot = Collections.emptyList();
+    private volatile List<NodeConnection> liveSnapshot = Collections.emptyList();
+
+    // Método para adicionar um nó; devolve false se já estava registado (nesse caso é marcado como ativo)
+    public synchronized boolean add(NodeConnection node) {
+        if (peers.containsKey(node)) {
+            markAlive(node);
+            return false;
+        }
+        peers.put(node, new PeerState(System.currentTimeMillis()));
+        publish();
+        return true;
+    }
+
+    // Método para registar uma resposta de um nó
+    public synchronized void markAlive(NodeConnection node) {
+        PeerState state = peers.get(node);
+        if (state == null) {
+            return;
+        }
+        state.nextCheckAt = System.currentTimeMillis() + HEARTBEAT_INTERVAL_MS;
+        if (state.failures > 0) {
+            state.failures = 0;
+            System.out.println("Nó " + node + " voltou a responder.");
+            publish();
+        }
+    }
+
+    // Método para registar uma falha de um nó; devolve true se o nó foi removido por falhar demasiadas vezes
+    public synchronized boolean markFailed(NodeConnection node) {
+        PeerState state = peers.get(node);
+        if (state == null) {
+            return false;
+        }
+        state.failures++;
+        if (state.failures >= MAX_FAILURES) {
+            peers.remove(node);
+            publish();
+            return true;
+        }
+        long backoff = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << (state.failures - 1));
+        state.nextCheckAt = System.currentTimeMillis() + backoff;
+        if (state.failures == 1) {
+            publish();
+        }
+        return false;
+    }
+
+    // Método para obter os nós cujo heartbeat já está na hora; o próximo fica marcado para depois do intervalo
+    public synchronized List<NodeConnection> takePeersDue(long now) {
+        List<NodeConnection> due = new ArrayList<>();
+        for (Map.Entry<NodeConnection, PeerState> entry : peers.entrySet()) {
+            PeerState state = entry.getValue();
+            if (state.nextCheckAt <= now) {
+                state.nextCheckAt = now + HEARTBEAT_INTERVAL_MS;
+                due.add(entry.getKey());
+            }
+        }
+        return due;
+    }
+
+    public boolean contains(NodeConnection node) {
+        return snapshot.contains(node);
+    }
+
+    // Método para obter todos os nós registados (lista imutável)
+    public List<NodeConnection> getPeers() {
+        return snapshot;
+    }
+
+    // Método para obter os nós que estão a responder (lista imutável)
+    public List<NodeConnection> getLivePeers() {
+        return liveSnapshot;
+    }
+
+    private void publish() {
+        List<NodeConnection> all = new ArrayList<>(peers.size());
+        List<NodeConnection> live = new ArrayList<>(peers.size());
+        for (Map.Entry<NodeConnection, PeerState> entry : peers.entrySet()) {
+            all.add(entry.getKey());
+            if (entry.getValue().failures == 0) {
+                live.add(entry.getKey());
+            }
+        }
+        snapshot = Collections.unmodifiableList(all);
+        liveSnapshot = Collections.unmodifiableList(live);
+    }
+
+    @Override
+    public String toString() {
+        return snapshot.toString();
+    }
+
+    // Estado de um nó
+    private static class PeerState {
+        private int failures; // Falhas seguidas
+        private long nextCheckAt; // Instante do próximo heartbeat
+
+        private PeerState(long now) {
+            this.nextCheckAt = now + HEARTBEAT_INTERVAL_MS;
+        }
+    }
+}
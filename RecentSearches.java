@@ -0,0 +1,83 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Classe que guarda as pesquisas recentes que passaram por este nó
+//
+// Uma pesquisa reencaminhada pode chegar ao mesmo nó por vários caminhos; o identificador da pesquisa fica registado
+// durante SEEN_TTL_MS para que só a primeira cópia seja tratada. Os resultados obtidos dos outros nós ficam em cache
+// durante RESULTS_TTL_MS, para que pesquisas repetidas não voltem a percorrer a rede.
+public class RecentSearches {
+    private static final long SEEN_TTL_MS = 60000;
+    private static final long RESULTS_TTL_MS = 30000;
+    private static final int MAX_CACHED_QUERIES = 256;
+    private static final int PURGE_EVERY = 1024; // Pesquisas registadas entre limpezas dos identificadores antigos
+
+    private final Map<Long, Long> seenQueries = new ConcurrentHashMap<>(); // Identificador -> instante em que expira
+    private int seenSinceLastPurge;
+    // Pesquisa normalizada -> resultados; a ordem de acesso permite descartar as menos usadas
+    private final Map<String, CachedResults> cachedResults = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Método para registar uma pesquisa; devolve false se já tinha sido vista (e ainda não expirou)
+    public boolean markSeen(long queryId) {
+        long now = System.currentTimeMillis();
+        Long previous = seenQueries.put(queryId, now + SEEN_TTL_MS);
+        if (previous != null && previous > now) {
+            return false;
+        }
+        purgeSeen(now);
+        return true;
+    }
+
+    private synchronized void purgeSeen(long now) {
+        if (++seenSinceLastPurge < PURGE_EVERY) {
+            return;
+        }
+        seenSinceLastPurge = 0;
+        seenQueries.values().removeIf(expiresAt -> expiresAt <= now);
+    }
+
+    // Método para obter os resultados guardados de uma pesquisa que chegou pelo menos a ttl saltos (null se não
+    // houver ou se já tiverem expirado)
+    public synchronized List<SearchResult> getCachedResults(String query, int ttl) {
+        String key = normalize(query);
+        CachedResults cached = cachedResults.get(key);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.expiresAt <= System.currentTimeMillis()) {
+            cachedResults.remove(key);
+            return null;
+        }
+        return cached.ttl >= ttl ? cached.results : null;
+    }
+
+    // Método para guardar os resultados de uma pesquisa feita com o ttl dado
+    public synchronized void cacheResults(String query, int ttl, List<SearchResult> results) {
+        long now = System.currentTimeMillis();
+        cachedResults.put(normalize(query), new CachedResults(Collections.unmodifiableList(new ArrayList<>(results)),
+                ttl, now + RESULTS_TTL_MS));
+        Iterator<CachedResults> iterator = cachedResults.values().iterator();
+        while (iterator.hasNext()) {
+            CachedResults cached = iterator.next();
+            if (cachedResults.size() > MAX_CACHED_QUERIES || cached.expiresAt <= now) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static String normalize(String query) {
+        return query == null ? "" : query.toLowerCase().trim().replaceAll("\\s+", " ");
+    }
+
+    private static class CachedResults {
+        private final List<SearchResult> results;
+        private final int ttl;
+        private final long expiresAt;
+
+        private CachedResults(List<SearchResult> results, int ttl, long expiresAt) {
+            this.results = results;
+            this.ttl = ttl;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
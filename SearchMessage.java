@@ -1,15 +1,31 @@
 public class SearchMessage extends Message {
     private String query;
+    private long queryId; // Identifica a pesquisa em todos os nós, para ignorar pedidos repetidos
+    private int ttl; // Número de saltos que a pesquisa ainda pode dar
 
     public SearchMessage(String query) {
+        this(query, 0, 0);
+    }
+
+    public SearchMessage(String query, long queryId, int ttl) {
         super("SEARCH:" + query, "SEARCH");
         this.query = query;
+        this.queryId = queryId;
+        this.ttl = ttl;
     }
 
     public String getQuery() {
         return query;
     }
 
+    public long getQueryId() {
+        return queryId;
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
+
     @Override
     public String toString() {
         return "SEARCH:" + query;
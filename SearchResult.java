@@ -0,0 +1,56 @@
+import java.util.Objects;
+
+// Classe que representa um ficheiro encontrado numa pesquisa e o nó que o tem
+public class SearchResult {
+    private final String fileName; // Caminho relativo à pasta partilhada do nó
+    private final long fileSize;
+    private final String checksum;
+    private final NodeConnection holder;
+
+    public SearchResult(String fileName, long fileSize, String checksum, NodeConnection holder) {
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.checksum = checksum;
+        this.holder = holder;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public NodeConnection getHolder() {
+        return holder;
+    }
+
+    // O mesmo ficheiro no mesmo nó pode chegar por caminhos diferentes
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof SearchResult)) {
+            return false;
+        }
+        SearchResult result = (SearchResult) other;
+        return fileSize == result.fileSize && fileName.equals(result.fileName) && checksum.equals(result.checksum)
+                && holder.equals(result.holder);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(fileName, fileSize, checksum, holder);
+    }
+
+    @Override
+    public String toString() {
+        return fileName + ":" + fileSize + ":" + checksum + "@" + holder;
+    }
+}
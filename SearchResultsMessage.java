@@ -1,17 +1,27 @@
 import java.util.List;
 
 public class SearchResultsMessage extends Message {
-    private List<String> results;
+    private List<SearchResult> results;
+    private boolean last; // false se ainda vão chegar mais resultados para o mesmo pedido
 
-    public SearchResultsMessage(List<String> results) {
-        super("SEARCH_RESULTS:" + results, "SEARCH_RESULTS");
+    public SearchResultsMessage(List<SearchResult> results) {
+        this(results, true);
+    }
+
+    public SearchResultsMessage(List<SearchResult> results, boolean last) {
+        super("SEARCH_RESULTS", "SEARCH_RESULTS"); // A lista só é formatada em toString()
         this.results = results;
+        this.last = last;
     }
 
-    public List<String> getResults() {
+    public List<SearchResult> getResults() {
         return results;
     }
 
+    public boolean isLast() {
+        return last;
+    }
+
     @Override
     public String toString() {
         return "SEARCH_RESULTS:" + results;
@@ -0,0 +1,177 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+// Classe que guarda o estado de uma ligação aceite pelo servidor NIO
+//
+// A memória de cada ligação é limitada: as tramas recebidas não podem ultrapassar MAX_REQUEST_SIZE e, enquanto
+// houver demasiadas respostas por enviar (cliente lento) ou pedidos em processamento, a ligação deixa de ser lida e
+// as tramas já recebidas ficam no buffer, sem ser descodificadas, até terminarem pedidos.
+public class ServerConnection {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    public static final int MAX_REQUEST_SIZE = 1024 * 1024; // Os pedidos são pequenos; 1MB chega e sobra
+    private static final long MAX_PENDING_OUTPUT = 8 * 1024 * 1024; // Bytes por enviar antes de parar de ler
+    private static final int MAX_REQUESTS_IN_PROGRESS = 64;
+
+    private final SocketChannel channel;
+    private final String remoteAddress;
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Deque<Object> outputQueue = new ArrayDeque<>(); // ByteBuffer ou BlockRegion
+    private long regionOffset; // Bytes já enviados do BlockRegion no início da fila
+    private long pendingOutputBytes;
+    private int requestsInProgress;
+    private boolean closed;
+
+    public ServerConnection(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        this.remoteAddress = String.valueOf(channel.getRemoteAddress());
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    public SelectionKey getKey() {
+        return key;
+    }
+
+    // Método para ler do socket para o buffer; devolve false se o cliente fechou a ligação
+    public boolean read() throws IOException {
+        return channel.read(readBuffer) >= 0;
+    }
+
+    // Método para retirar do buffer as tramas completas, apenas enquanto houver lugar para mais pedidos em
+    // processamento; as restantes são descodificadas quando terminarem pedidos
+    public synchronized List<MessageEnvelope> takeRequests() throws IOException {
+        List<MessageEnvelope> requests = new ArrayList<>();
+        int room = pendingOutputBytes < MAX_PENDING_OUTPUT ? MAX_REQUESTS_IN_PROGRESS - requestsInProgress : 0;
+        if (room <= 0 || readBuffer.position() == 0) {
+            return requests;
+        }
+        readBuffer.flip();
+        while (requests.size() < room && readBuffer.remaining() >= 4) {
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < 9 || length > MAX_REQUEST_SIZE) {
+                throw new IOException("Trama com comprimento inválido: " + length);
+            }
+            if (readBuffer.remaining() < 4 + length) {
+                if (readBuffer.capacity() < 4 + length) {
+                    // Trama maior do que o buffer: aumentar só o necessário para esta trama
+                    ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                    larger.put(readBuffer);
+                    readBuffer = larger;
+                    return requests;
+                }
+                break;
+            }
+            int start = readBuffer.arrayOffset() + readBuffer.position() + 4;
+            requests.add(MessageCodec.decodeFrame(readBuffer.array(), start, length));
+            readBuffer.position(readBuffer.position() + 4 + length);
+        }
+        if (readBuffer.capacity() > READ_BUFFER_SIZE && readBuffer.remaining() <= READ_BUFFER_SIZE) {
+            // Voltar ao buffer pequeno depois de uma trama grande
+            ByteBuffer smaller = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            smaller.put(readBuffer);
+            readBuffer = smaller;
+        } else {
+            readBuffer.compact();
+        }
+        return requests;
+    }
+
+    // Método para pôr uma resposta na fila de envio (chamado pelas threads que processam os pedidos)
+    public synchronized void enqueue(ByteBuffer[] frame) {
+        if (closed) {
+            return;
+        }
+        for (ByteBuffer buffer : frame) {
+            outputQueue.addLast(buffer);
+            pendingOutputBytes += buffer.remaining();
+        }
+    }
+
+    // Método para pôr na fila o cabeçalho de um bloco seguido dos dados, que são enviados a partir do ficheiro
+    public synchronized void enqueue(ByteBuffer header, BlockRegion block) {
+        if (closed) {
+            return;
+        }
+        outputQueue.addLast(header);
+        outputQueue.addLast(block);
+        pendingOutputBytes += header.remaining() + block.getLength();
+    }
+
+    // Método para enviar o que o socket aceitar sem bloquear; devolve true se a fila ficou vazia
+    public synchronized boolean write() throws IOException {
+        while (!outputQueue.isEmpty()) {
+            Object next = outputQueue.peekFirst();
+            if (next instanceof BlockRegion) {
+                BlockRegion block = (BlockRegion) next;
+                long written = block.transferTo(channel, regionOffset);
+                regionOffset += written;
+                pendingOutputBytes -= written;
+                if (regionOffset < block.getLength()) {
+                    return false;
+                }
+                regionOffset = 0;
+            } else {
+                ByteBuffer buffer = (ByteBuffer) next;
+                pendingOutputBytes -= channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+            }
+            outputQueue.removeFirst();
+        }
+        return true;
+    }
+
+    public synchronized void requestStarted() {
+        requestsInProgress++;
+    }
+
+    public synchronized void requestFinished() {
+        requestsInProgress--;
+    }
+
+    // Método para calcular os eventos em que o selector deve estar interessado (controlo de fluxo)
+    public synchronized int interestOps() {
+        int ops = 0;
+        if (pendingOutputBytes < MAX_PENDING_OUTPUT && requestsInProgress < MAX_REQUESTS_IN_PROGRESS
+                && readBuffer.hasRemaining()) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!outputQueue.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        return ops;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        outputQueue.clear();
+        pendingOutputBytes = 0;
+        regionOffset = 0;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Erro ao fechar ligação de " + remoteAddress + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,19 @@
+import java.io.File;
+import java.util.Map;
+
+// Interface para ser avisado das alterações aos ficheiros partilhados
+// fileName é o caminho do ficheiro relativo à pasta partilhada
+public interface SharedFilesListener {
+    // Um ficheiro passou a ser partilhado (ou foi modificado e tem um novo checksum)
+    void fileAdded(String fileName, File file, String checksum);
+
+    // Um ficheiro deixou de ser partilhado (ou a versão anterior de um ficheiro modificado)
+    void fileRemoved(String fileName, File file, String checksum);
+
+    // Vários ficheiros deixaram de ser partilhados de uma vez (por exemplo, uma pasta apagada)
+    // files e checksums usam o caminho relativo como chave; um ficheiro sem checksum conhecido não está em checksums
+    void filesRemoved(Map<String, File> files, Map<String, String> checksums);
+
+    // A lista de ficheiros foi lida de novo por completo
+    void filesReloaded();
+}
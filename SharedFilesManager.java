@@ -1,47 +1,77 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.math.BigInteger;
-import java.nio.file.Files;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 
 public class SharedFilesManager {
-    private List<File> sharedFiles;
+    private static final String CHECKSUM_CACHE_FILE = ".checksums"; // Ficheiro oculto, ignorado na partilha
+    private static final long WATCH_POLL_MS = 200;
+    private static final long WATCH_QUIET_MS = 500; // Tempo sem eventos antes de ler um ficheiro alterado
+    private volatile Map<String, File> sharedFiles; // Ficheiros partilhados por caminho relativo
     private String sharedFolderPath;
+    private Map<String, CachedChecksum> checksumCache; // Cache de checksums por caminho relativo
+    private FileNameIndex nameIndex = new FileNameIndex(); // Índice dos nomes para as pesquisas
+    private final List<SharedFilesListener> listeners = new CopyOnWriteArrayList<>();
+    private WatchService watchService;
+    // Lock da escrita do ficheiro da cache, separado do monitor que protege a lista de ficheiros (que fica ocupado
+    // durante uma leitura completa da pasta)
+    private final Object cacheFileLock = new Object();
 
     // Construtor que recebe o caminho da pasta a ser partilhada
     public SharedFilesManager(String sharedFolderPath) {
         this.sharedFolderPath = sharedFolderPath;
-        this.sharedFiles = new ArrayList<>();
+        this.sharedFiles = new ConcurrentHashMap<>();
+        this.checksumCache = new ConcurrentHashMap<>();
+        loadChecksumCache();
+        // Começar a vigiar a pasta antes de a ler, para não perder ficheiros criados entretanto
+        startWatching();
         loadSharedFiles();
     }
 
-    // Método para carregar os ficheiros da pasta especificada
-    public void loadSharedFiles() {
-        sharedFiles.clear();
+    // Método para registar quem deve ser avisado das alterações aos ficheiros partilhados
+    public void addListener(SharedFilesListener listener) {
+        listeners.add(listener);
+    }
+
+    // Método para carregar os ficheiros da pasta especificada e das suas subpastas
+    public synchronized void loadSharedFiles() {
+        Map<String, File> files = new ConcurrentHashMap<>();
         File folder = new File(sharedFolderPath);
         
         // Verifica se o caminho é uma pasta válida
-        if (folder.exists() && folder.isDirectory()) {
-            File[] files = folder.listFiles();
-            
-            if (files != null) {
-                for (File file : files) {
-                    // Ignora ficheiros ocultos
-                    if (file.getName().startsWith(".")) {
-                        continue;
-                    }
-                    
-                    // Verifica se é um ficheiro e não uma subpasta
-                    if (file.isFile()) {
-                        sharedFiles.add(file);
-                    }
-                }
-            }
-        } else {
+        if (!folder.exists() || !folder.isDirectory()) {
             System.out.println("O caminho especificado não é uma pasta válida.");
+            return;
+        }
+
+        // Percorrer as pastas e calcular (ou reaproveitar da cache) os checksums em paralelo, uma thread por core
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            pool.invoke(new FolderScan(folder.toPath(), files));
+        } finally {
+            pool.shutdown();
+        }
+        checksumCache.keySet().retainAll(files.keySet());
+        saveChecksumCache();
+        nameIndex.replaceAll(files);
+        sharedFiles = files;
+        for (SharedFilesListener listener : listeners) {
+            listener.filesReloaded();
         }
     }
 
@@ -52,48 +82,415 @@ public class SharedFilesManager {
 
     // Método para obter a lista de ficheiros partilhados
     public List<File> getSharedFiles() {
-        return sharedFiles;
+        return new ArrayList<>(sharedFiles.values());
     }
 
     // Método para realizar uma pesquisa por nome de ficheiro nos ficheiros partilhados
     public List<File> searchFiles(String query) {
-        List<File> searchResults = new ArrayList<>();
-        for (File file : sharedFiles) {
-            if (file.getName().toLowerCase().contains(query.toLowerCase())) {
-                searchResults.add(file);
+        return searchFiles(query, Integer.MAX_VALUE);
+    }
+
+    // Método para pesquisar no índice de nomes: ficheiros com todas as palavras da pesquisa, os mais relevantes
+    // primeiro, no máximo limit resultados
+    public List<File> searchFiles(String query, int limit) {
+        return nameIndex.search(query, limit);
+    }
+
+    // Método para obter um ficheiro pelo nome (caminho relativo à pasta partilhada)
+    public File getFileByName(String fileName) {
+        return sharedFiles.get(fileName);
+    }
+
+    // Método para aplicar a alteração de um ficheiro ou pasta (criado, modificado ou apagado)
+    public void updateFile(File file) {
+        updateFiles(Collections.singletonList(file));
+    }
+
+    // Método para aplicar várias alterações de uma vez (por exemplo, uma pasta apagada): a cache de checksums é
+    // gravada uma só vez e os ficheiros retirados são avisados aos listeners numa só chamada
+    public synchronized void updateFiles(Collection<File> files) {
+        ChangeBatch batch = new ChangeBatch();
+        for (File file : files) {
+            applyChange(file, batch);
+        }
+        notifyRemoved(batch);
+        if (batch.cacheChanged) {
+            saveChecksumCache();
+        }
+    }
+
+    private void applyChange(File file, ChangeBatch batch) {
+        if (file.getName().startsWith(".")) {
+            return;
+        }
+        String key = getRelativePath(file);
+        Path path = file.toPath();
+        if (Files.isSymbolicLink(path) && Files.isDirectory(path)) {
+            return; // Ligações para pastas não são seguidas, como em FolderScan (podem apontar para uma pasta acima)
+        }
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            // Pasta nova (ou movida para dentro da partilha): vigiar e partilhar o seu conteúdo
+            watch(path);
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    applyChange(child, batch);
+                }
+            }
+            return;
+        }
+        File previous = sharedFiles.get(key);
+        CachedChecksum cached = checksumCache.get(key);
+        String previousChecksum = cached != null ? cached.checksum : null;
+
+        if (!file.isFile()) {
+            if (previous != null) {
+                removeFile(key, batch);
+            } else {
+                // Pode ter sido apagada uma pasta: retirar os ficheiros que estavam dentro dela
+                String prefix = key + "/";
+                for (String sharedKey : new ArrayList<>(sharedFiles.keySet())) {
+                    if (sharedKey.startsWith(prefix)) {
+                        removeFile(sharedKey, batch);
+                    }
+                }
             }
+            return;
+        }
+        if (previous != null && cached != null && cached.size == file.length()
+                && cached.lastModified == file.lastModified()) {
+            return; // Sem alterações
+        }
+
+        String checksum = getChecksum(file, false);
+        if (checksum == null) {
+            return;
+        }
+        batch.cacheChanged = true;
+        notifyRemoved(batch); // Os listeners recebem as alterações pela ordem em que aconteceram
+        if (previous != null && previousChecksum != null) {
+            for (SharedFilesListener listener : listeners) {
+                listener.fileRemoved(key, previous, previousChecksum);
+            }
+        }
+        sharedFiles.put(key, file);
+        nameIndex.add(file, key);
+        System.out.println("Ficheiro partilhado: " + key);
+        for (SharedFilesListener listener : listeners) {
+            listener.fileAdded(key, file, checksum);
         }
-        return searchResults;
     }
 
-    // Método para obter um ficheiro pelo nome
-    public File getFileByName(String fileName) {
-        for (File file : sharedFiles) {
-            if (file.getName().equals(fileName)) {
-                return file;
+    private void removeFile(String key, ChangeBatch batch) {
+        File previous = sharedFiles.remove(key);
+        CachedChecksum cached = checksumCache.remove(key);
+        if (previous == null) {
+            return;
+        }
+        nameIndex.remove(previous);
+        batch.cacheChanged = true;
+        batch.removedFiles.put(key, previous);
+        if (cached != null) {
+            batch.removedChecksums.put(key, cached.checksum);
+        }
+    }
+
+    // Método para avisar os listeners dos ficheiros retirados ainda não avisados
+    private void notifyRemoved(ChangeBatch batch) {
+        if (batch.removedFiles.isEmpty()) {
+            return;
+        }
+        if (batch.removedFiles.size() == 1) {
+            System.out.println("Ficheiro deixou de ser partilhado: " + batch.removedFiles.keySet().iterator().next());
+        } else {
+            System.out.println(batch.removedFiles.size() + " ficheiros deixaram de ser partilhados.");
+        }
+        Map<String, File> removedFiles = new LinkedHashMap<>(batch.removedFiles);
+        Map<String, String> removedChecksums = new HashMap<>(batch.removedChecksums);
+        batch.removedFiles.clear();
+        batch.removedChecksums.clear();
+        for (SharedFilesListener listener : listeners) {
+            listener.filesRemoved(removedFiles, removedChecksums);
+        }
+    }
+
+    // Método para partilhar um ficheiro descarregado, cujo checksum já foi verificado (não é lido de novo)
+    public synchronized void addDownloadedFile(File file, String checksum) {
+        checksumCache.put(getRelativePath(file), new CachedChecksum(file.length(), file.lastModified(), checksum));
+        updateFile(file);
+    }
+
+    // Método para vigiar a pasta partilhada e aplicar as alterações sem voltar a ler todos os ficheiros
+    // (as subpastas são registadas à medida que são percorridas)
+    private void startWatching() {
+        Path folder = Paths.get(sharedFolderPath);
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            System.out.println("Erro ao vigiar a pasta partilhada: " + e.getMessage());
+            return;
+        }
+        Thread watcher = new Thread(this::watchFolder, "vigiar-" + folder.getFileName());
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    // Método para vigiar uma pasta (sem as subpastas)
+    private void watch(Path folder) {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | ClosedWatchServiceException e) {
+            System.out.println("Erro ao vigiar a pasta " + folder + ": " + e.getMessage());
+        }
+    }
+
+    private void watchFolder() {
+        Map<Path, Long> pendingChanges = new HashMap<>(); // Caminho -> instante do último evento
+        try {
+            while (true) {
+                WatchKey key = watchService.poll(WATCH_POLL_MS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // Eventos perdidos: ler a pasta toda de novo
+                            pendingChanges.clear();
+                            loadSharedFiles();
+                            continue;
+                        }
+                        Path path = ((Path) key.watchable()).resolve((Path) event.context());
+                        pendingChanges.put(path, System.currentTimeMillis());
+                    }
+                    key.reset();
+                }
+
+                // Só aplicar as alterações de ficheiros que já não mudam há algum tempo (cópias a meio), todas de uma
+                // vez (apagar uma pasta gera um evento por ficheiro)
+                long now = System.currentTimeMillis();
+                List<File> ready = new ArrayList<>();
+                Iterator<Map.Entry<Path, Long>> changes = pendingChanges.entrySet().iterator();
+                while (changes.hasNext()) {
+                    Map.Entry<Path, Long> change = changes.next();
+                    if (now - change.getValue() >= WATCH_QUIET_MS) {
+                        changes.remove();
+                        ready.add(change.getKey().toFile());
+                    }
+                }
+                if (!ready.isEmpty()) {
+                    updateFiles(ready);
+                }
             }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            System.out.println("Deixou de vigiar a pasta partilhada.");
         }
-        return null;
     }
 
     // Método para retornar o checksum de um ficheiro por nome
-    public String getFileChecksum(String fileName) { 
-        String checksum;
+    public String getFileChecksum(String fileName) {
         File file = getFileByName(fileName);
-        try{
-            if (file != null) {
-                try {
-                    byte[] data = Files.readAllBytes(file.toPath());
-                    byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
-                    checksum = new BigInteger(1, hash).toString(16);
-                    return checksum;
-                } catch (NoSuchAlgorithmException e) {
-                    System.out.println("Erro ao criar instância de MessageDigest: " + e.getMessage());
-                }
+        if (file != null) {
+            return getChecksum(file);
+        }
+        return null;
+    }
+
+    // Método para obter o checksum guardado de um ficheiro partilhado, sem ler o ficheiro nem esperar por locks
+    // (null se não estiver na cache); usado pelas pesquisas, que não podem esperar pelo cálculo de um checksum
+    public String getCachedChecksum(File file) {
+        CachedChecksum cached = checksumCache.get(getRelativePath(file));
+        return cached != null ? cached.checksum : null;
+    }
+
+    // Método para obter o checksum de um ficheiro, recalculando-o apenas se o tamanho ou a data mudaram
+    public String getChecksum(File file) {
+        return getChecksum(file, true);
+    }
+
+    private String getChecksum(File file, boolean persist) {
+        String key = getRelativePath(file);
+        long size = file.length();
+        long lastModified = file.lastModified();
+        CachedChecksum cached = checksumCache.get(key);
+        if (cached != null && cached.size == size && cached.lastModified == lastModified) {
+            return cached.checksum;
+        }
+
+        String checksum = computeChecksum(file);
+        if (checksum != null) {
+            checksumCache.put(key, new CachedChecksum(size, lastModified, checksum));
+            if (persist) {
+                saveChecksumCache();
             }
+        }
+        return checksum;
+    }
+
+    // Método para calcular o checksum SHA-256 de um ficheiro (leitura por partes)
+    private String computeChecksum(File file) {
+        try {
+            return FileHasher.sha256(file);
         } catch (IOException e) {
             System.out.println("Erro ao ler ficheiro: " + e.getMessage());
         }
         return null;
     }
+
+    // Método para obter o caminho relativo à pasta partilhada, que identifica o ficheiro (e a chave da cache)
+    public String getRelativePath(File file) {
+        Path folder = Paths.get(sharedFolderPath).toAbsolutePath().normalize();
+        Path path = file.toPath().toAbsolutePath().normalize();
+        return folder.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    // Método para carregar a cache de checksums guardada na pasta partilhada
+    private void loadChecksumCache() {
+        Path cacheFile = Paths.get(sharedFolderPath, CHECKSUM_CACHE_FILE);
+        if (!Files.isRegularFile(cacheFile)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // Formato: tamanho<TAB>data<TAB>checksum<TAB>caminho
+                String[] parts = line.split("\t", 4);
+                if (parts.length < 4) {
+                    continue;
+                }
+                try {
+                    checksumCache.put(parts[3],
+                            new CachedChecksum(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2]));
+                } catch (NumberFormatException e) {
+                    System.out.println("Entrada inválida na cache de checksums: " + line);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Erro ao ler cache de checksums: " + e.getMessage());
+        }
+    }
+
+    // Método para guardar a cache de checksums (escreve num ficheiro temporário e substitui o anterior)
+    private void saveChecksumCache() {
+        synchronized (cacheFileLock) {
+            writeChecksumCache();
+        }
+    }
+
+    private void writeChecksumCache() {
+        Path folder = Paths.get(sharedFolderPath);
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+        Path cacheFile = folder.resolve(CHECKSUM_CACHE_FILE);
+        Path tempFile = folder.resolve(CHECKSUM_CACHE_FILE + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, CachedChecksum> entry : checksumCache.entrySet()) {
+                    CachedChecksum cached = entry.getValue();
+                    writer.write(cached.size + "\t" + cached.lastModified + "\t" + cached.checksum + "\t"
+                            + entry.getKey());
+                    writer.newLine();
+                }
+            }
+            Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Erro ao guardar cache de checksums: " + e.getMessage());
+        }
+    }
+
+    // Tarefa que percorre uma pasta: as subpastas são percorridas em paralelo e os checksums dos ficheiros também
+    // são calculados em paralelo. Os ficheiros são lidos por partes, por isso a memória usada depende só do número
+    // de threads.
+    private class FolderScan extends RecursiveAction {
+        private final Path folder;
+        private final Map<String, File> files;
+
+        private FolderScan(Path folder, Map<String, File> files) {
+            this.folder = folder;
+            this.files = files;
+        }
+
+        @Override
+        protected void compute() {
+            watch(folder); // Antes de ler a pasta, para não perder ficheiros criados entretanto
+            List<RecursiveAction> tasks = new ArrayList<>();
+            List<File> folderFiles = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+                for (Path entry : entries) {
+                    // Ignora ficheiros e pastas ocultos
+                    if (entry.getFileName().toString().startsWith(".")) {
+                        continue;
+                    }
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        tasks.add(new FolderScan(entry, files));
+                    } else if (Files.isRegularFile(entry)) {
+                        folderFiles.add(entry.toFile());
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Erro ao ler a pasta " + folder + ": " + e.getMessage());
+            }
+            if (!folderFiles.isEmpty()) {
+                tasks.add(new ChecksumPass(folderFiles, 0, folderFiles.size(), files));
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    // Tarefa que calcula os checksums de uma parte da lista de ficheiros de uma pasta, dividindo-a em partes menores
+    private class ChecksumPass extends RecursiveAction {
+        private static final int FILES_PER_TASK = 16;
+        private final List<File> folderFiles;
+        private final int from;
+        private final int to;
+        private final Map<String, File> files;
+
+        private ChecksumPass(List<File> folderFiles, int from, int to, Map<String, File> files) {
+            this.folderFiles = folderFiles;
+            this.from = from;
+            this.to = to;
+            this.files = files;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > FILES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ChecksumPass(folderFiles, from, middle, files),
+                        new ChecksumPass(folderFiles, middle, to, files));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                File file = folderFiles.get(i);
+                if (getChecksum(file, false) != null) {
+                    files.put(getRelativePath(file), file);
+                }
+            }
+        }
+    }
+
+    // Alterações aplicadas de uma vez por updateFiles
+    private static class ChangeBatch {
+        private final Map<String, File> removedFiles = new LinkedHashMap<>(); // Por caminho relativo
+        private final Map<String, String> removedChecksums = new HashMap<>();
+        private boolean cacheChanged;
+    }
+
+    // Entrada da cache de checksums
+    private static class CachedChecksum {
+        private final long size;
+        private final long lastModified;
+        private final String checksum;
+
+        private CachedChecksum(long size, long lastModified, String checksum) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+        }
+    }
 }
\ No newline at end of file